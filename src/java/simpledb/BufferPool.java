@@ -5,6 +5,12 @@ import java.io.*;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -14,26 +20,139 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * A hit never takes the pool's monitor: the page table is a
+ * ConcurrentHashMap, and a hit only pins the page's Frame and tells the
+ * EvictionPolicy about it. The monitor is taken on misses, to install a page and evict
+ * another, and by the flush and transaction-completion paths.
+ * <p>
+ * By default the pool is NO STEAL/FORCE: only clean pages are evicted, and
+ * commit writes every page the transaction dirtied. Either way commit first
+ * logs the pages and the COMMIT record, which makes LogFile.recover able to
+ * redo a commit whose pages never made it to disk. setStealNoForce switches
+ * it to STEAL/NO FORCE, driven by the LogFile: a dirty page may be evicted
+ * once its update record is on the log, and commit logs the transaction's
+ * pages and forces only the log. The pages themselves are written later, by
+ * eviction or the PageCleaner. An abort then rolls back from the log.
  *
  * @Threadsafe, all fields are final
  */
 public class BufferPool {
-    private Page page;
 
-    private HashMap<PageId, Page> bPageMap = new HashMap<PageId, Page>();
+    /**
+     * A cached page plus the bookkeeping the pool needs for it. pins counts
+     * the threads currently using the page; an evictor claims an unpinned
+     * frame by setting pins to -1, after which it can no longer be pinned.
+     */
+    private static final class Frame {
+        volatile Page page;
+        // frames of getPageSize() bytes this page takes
+        final int size;
+        final AtomicInteger pins = new AtomicInteger();
+        // the scan ring that read the page, until anyone else uses it
+        volatile BufferRing ring;
+        // the PageArena frame holding the page bytes, or -1 if on the heap
+        int slot = -1;
+        // LSN of the first log record with an update of the page that may
+        // not be on disk yet, or 0; see getDirtyPageTable
+        volatile long recLsn;
+
+        Frame(Page page, int size) {
+            this.page = page;
+            this.size = size;
+        }
+
+        boolean pin() {
+            for (;;) {
+                int p = pins.get();
+                if (p < 0) {
+                    return false;
+                }
+                if (pins.compareAndSet(p, p + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void unpin() {
+            // never below 0: the frame may have been discarded and replaced
+            // while the caller held its pin
+            for (;;) {
+                int p = pins.get();
+                if (p <= 0 || pins.compareAndSet(p, p - 1)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // written by the read-ahead threads as well as by callers of getPage
+    private final ConcurrentHashMap<PageId, Frame> pageTable = new ConcurrentHashMap<PageId, Frame>();
     private int bufSize;
-    private LinkedHashSet<PageId> LRUCache = new LinkedHashSet<>();
-    public HashMap<TransactionId, HashSet<PageId>> dirtyMap = new HashMap<>();
+    // frames of getPageSize() bytes taken by the cached pages; a page of a
+    // HeapFile with larger pages takes several
+    private volatile int usedFrames = 0;
+
+    /**
+     * System property with the default read-ahead window, in pages. 0 turns
+     * read-ahead off.
+     */
+    public static final String READ_AHEAD_PROPERTY = "simpledb.readahead.pages";
+    private static final int DEFAULT_READ_AHEAD_PAGES = 8;
+
+    private static final ExecutorService readAheadExecutor = Executors.newFixedThreadPool(2, r -> {
+        Thread t = new Thread(r, "simpledb-readahead");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private volatile int readAheadPages = Integer.getInteger(READ_AHEAD_PROPERTY, DEFAULT_READ_AHEAD_PAGES);
+    // pages being read by a read-ahead thread; getPage waits for these instead of reading twice
+    private final ConcurrentHashMap<PageId, CountDownLatch> inFlight = new ConcurrentHashMap<>();
+    // pages evicted while a read-ahead thread was reading them; what it read
+    // may predate the evicted copy, so it isn't installed. Protected by this
+    private final Set<PageId> evictedInFlight = new HashSet<>();
+    // pages cleanPages is writing; their frames stay claimed until it is
+    // done. Protected by this
+    private final Set<PageId> cleaning = new HashSet<>();
+    // pages brought in by read-ahead that nobody has asked for yet
+    private final Set<PageId> prefetched = ConcurrentHashMap.newKeySet();
+    private final AtomicLong prefetchIssued = new AtomicLong();
+    private final AtomicLong prefetchHits = new AtomicLong();
+    private final AtomicLong prefetchWasted = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    // evictions that found every unpinned page dirty
+    private final LongAdder noCleanVictim = new LongAdder();
+    private final LongAdder pagesWritten = new LongAdder();
+    private final LongAdder writeBatches = new LongAdder();
+    private volatile PageCleaner cleaner;
+
+    /**
+     * System property that turns on STEAL/NO FORCE for new pools.
+     *
+     * @see #setStealNoForce
+     */
+    public static final String STEAL_NO_FORCE_PROPERTY = "simpledb.steal";
+
+    private volatile boolean stealNoForce = Boolean.getBoolean(STEAL_NO_FORCE_PROPERTY);
+    // running transactions some of whose pages were written before commit
+    private final Set<TransactionId> stolen = ConcurrentHashMap.newKeySet();
+    public final ConcurrentHashMap<TransactionId, Set<PageId>> dirtyMap = new ConcurrentHashMap<>();
+    // pages written straight to disk by HeapFile.bulkAppend, undone on abort
+    private final HashMap<TransactionId, ArrayList<PageId>> bulkPages = new HashMap<>();
+    // files written since the last forceWrittenFiles; the writes may still
+    // be in the OS's cache only
+    private final Set<DbFile> writtenFiles = ConcurrentHashMap.newKeySet();
 
     public void markDirtyMap(boolean dirty, TransactionId tid, PageId pid) {
         if (dirty) {
-            if (!dirtyMap.containsKey(tid)) {
-                dirtyMap.put(tid, new HashSet<PageId>());
-            }
-            dirtyMap.get(tid).add(pid);
-        } else {
-            if (dirtyMap.containsKey(tid)) {
-                dirtyMap.get(tid).remove(pid);
+            dirtyMap.computeIfAbsent(tid, t -> ConcurrentHashMap.newKeySet()).add(pid);
+        } else if (tid != null) {
+            Set<PageId> pids = dirtyMap.get(tid);
+            if (pids != null) {
+                pids.remove(pid);
             }
         }
     }
@@ -52,6 +171,24 @@ public class BufferPool {
      */
     public static final int DEFAULT_PAGES = 50;
 
+    /**
+     * System property with the eviction policy of pools built with
+     * BufferPool(int): "lru" (the default), "clock" or "2q".
+     *
+     * @see EvictionPolicy#create
+     */
+    public static final String EVICTION_PROPERTY = "simpledb.eviction";
+
+    /**
+     * Most pages a scan ring recycles; rings are also kept to a quarter of
+     * the pool.
+     */
+    public static final int SCAN_RING_PAGES = 16;
+
+    private final EvictionPolicy policy;
+    // null unless the pool was built by offHeap
+    private final PageArena arena;
+
     /**
      * Creates a BufferPool that caches up to numPages pages.
      *
@@ -59,7 +196,61 @@ public class BufferPool {
      */
     public BufferPool(int numPages) {
         // some code goes here
+        this(numPages, EvictionPolicy.create(System.getProperty(EVICTION_PROPERTY, "lru"), numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and picks the
+     * pages to evict with the given policy, which must be new.
+     */
+    public BufferPool(int numPages, EvictionPolicy policy) {
+        this(numPages, policy, null);
+    }
+
+    private BufferPool(int numPages, EvictionPolicy policy, PageArena arena) {
         bufSize = numPages;
+        this.policy = policy;
+        this.arena = arena;
+    }
+
+    /**
+     * Creates a BufferPool that keeps the bytes of cached HeapFile pages in
+     * a PageArena of direct buffers, allocated up front, and caches as many
+     * pages as fit in budgetBytes. Such pages decode their tuples from the
+     * arena on every access instead of keeping them on the heap, which
+     * keeps the GC's work independent of the size of the pool.
+     * <p>
+     * Only pages of getPageSize() bytes live in the arena; pages of files
+     * with another page size are still kept on the heap.
+     */
+    public static BufferPool offHeap(long budgetBytes, EvictionPolicy policy) {
+        int numPages = (int) Math.min(Integer.MAX_VALUE, budgetBytes / pageSize);
+        return new BufferPool(numPages, policy, new PageArena(numPages, pageSize));
+    }
+
+    /**
+     * @see #offHeap(long, EvictionPolicy)
+     */
+    public static BufferPool offHeap(long budgetBytes) {
+        int numPages = (int) Math.min(Integer.MAX_VALUE, budgetBytes / pageSize);
+        return offHeap(budgetBytes, EvictionPolicy.create(System.getProperty(EVICTION_PROPERTY, "lru"), numPages));
+    }
+
+    /**
+     * Switches between NO STEAL/FORCE (false, the default) and STEAL/NO
+     * FORCE (true). Only switch while no transaction is running.
+     */
+    public void setStealNoForce(boolean on) {
+        stealNoForce = on;
+    }
+
+    public boolean isStealNoForce() {
+        return stealNoForce;
+    }
+
+    /** Returns whether this pool keeps page bytes in a PageArena. */
+    public boolean isOffHeap() {
+        return arena != null;
     }
     
     public static int getPageSize() {
@@ -93,36 +284,875 @@ public class BufferPool {
      */
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, null);
+//        return null;
+    }
+
+    /**
+     * Like getPage, but a page that has to be read goes into the given scan
+     * ring, and replaces the ring's oldest page once the ring is full.
+     *
+     * @param ring a ring from getScanRing, or null for the plain getPage
+     * @see BufferRing
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring)
+            throws TransactionAbortedException, DbException {
+        Frame frame = pinFrame(tid, pid, perm, ring);
+        Page p = frame.page;
+        frame.unpin();
+        return p;
+    }
+
+    /**
+     * Returns a new ring for a sequential scan over a table of tablePages
+     * pages, or null if the table fits in the pool, so that a scan over it
+     * should cache all of it.
+     */
+    public BufferRing getScanRing(int tablePages) {
+        if (tablePages <= bufSize) {
+            return null;
+        }
+        return new BufferRing(Math.max(2, Math.min(SCAN_RING_PAGES, bufSize / 4)));
+    }
+
+    /**
+     * Like getPage, but the page is also pinned: it stays in the pool until
+     * the caller hands it back with unpinPage, even if it is clean. Use this
+     * when a page is fetched in order to modify it, so that it cannot be
+     * evicted before it is marked dirty.
+     *
+     * @see #unpinPage
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        return pinPage(tid, pid, perm, null);
+    }
+
+    /**
+     * pinPage through a scan ring.
+     *
+     * @see #getPage(TransactionId, PageId, Permissions, BufferRing)
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring)
+            throws TransactionAbortedException, DbException {
+        return pinFrame(tid, pid, perm, ring).page;
+    }
+
+    /**
+     * Releases a pin taken by pinPage.
+     */
+    public void unpinPage(PageId pid) {
+        Frame frame = pageTable.get(pid);
+        if (frame != null) {
+            frame.unpin();
+        }
+    }
+
+    private Frame pinFrame(TransactionId tid, PageId pid, Permissions perm, BufferRing ring)
+            throws TransactionAbortedException, DbException {
         // acquire lock first
         Database.getLockManager().acquire(tid, pid, perm);
         // other logic
-        if (bPageMap.containsKey(pid)) {
-            LRUCacheGet(pid);
-            return bPageMap.get(pid);
+        CountDownLatch pending = inFlight.get(pid);
+        if (pending != null) {
+            try {
+                pending.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Frame cached = pageTable.get(pid);
+        if (cached != null && !cached.pin()) {
+            // being evicted, or being written by cleanPages
+            cached = pinCached(pid);
+        }
+        if (cached != null) {
+            policy.accessed(pid);
+            hits.increment();
+            if (cached.ring != null && cached.ring != ring) {
+                // somebody else wants it too; it is no longer the ring's to recycle
+                cached.ring = null;
+            }
+            if (prefetched.remove(pid)) {
+                prefetchHits.incrementAndGet();
+                if (ring != null) {
+                    // read ahead for this scan: the ring's page now
+                    adopt(ring, pid, cached);
+                }
+            }
+            return cached;
+        }
+        // a miss, or the frame was being evicted
+        misses.increment();
+        DbFile dbfile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        if (arena != null && dbfile instanceof HeapFile && ((HeapFile) dbfile).getPageSize() == pageSize) {
+            return installArenaPage(pid, (HeapFile) dbfile, ring);
+        }
+        return installPage(pid, dbfile.readPage(pid), ring);
+    }
+
+    /**
+     * Reads page pid straight into a free PageArena frame and installs it.
+     * The frame is claimed, making room as installPage would, before the
+     * read starts, so the read itself happens without the monitor. If other
+     * reads in progress hold every frame, so that there is nothing to evict,
+     * it waits for one of them to finish.
+     */
+    private Frame installArenaPage(PageId pid, HeapFile file, BufferRing ring) throws DbException {
+        int slot;
+        synchronized (this) {
+            makeRoom(1, ring);
+            while ((slot = arena.allocate()) < 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new DbException("interrupted waiting for a free frame for " + pid);
+                }
+                makeRoom(1, ring);
+            }
+            // hold the frame's place while we read
+            usedFrames++;
+        }
+        HeapPage page = null;
+        try {
+            page = file.readPageInto(pid, arena.frame(slot));
+        } finally {
+            synchronized (this) {
+                usedFrames--;
+                if (page == null) {
+                    arena.release(slot);
+                    notifyAll();
+                }
+            }
+        }
+        if (page == null) {
+            throw new DbException("couldn't read " + pid);
+        }
+        synchronized (this) {
+            // a waiting reader may have a frame, or a page to evict, now
+            notifyAll();
+            Frame cached = pinCached(pid);
+            if (cached != null) {
+                // someone else read it meanwhile
+                arena.release(slot);
+                policy.accessed(pid);
+                return cached;
+            }
+            Frame frame = new Frame(page, 1);
+            frame.slot = slot;
+            frame.pin();
+            putFrame(pid, frame);
+            if (ring != null) {
+                adopt(ring, pid, frame);
+            }
+            return frame;
+        }
+    }
+
+    /**
+     * Adds a freshly read page to the pool, evicting if needed, and returns
+     * its frame pinned. If another thread installed the page first, that
+     * copy wins and is returned.
+     */
+    private synchronized Frame installPage(PageId pid, Page bPage, BufferRing ring) throws DbException {
+        Frame cached = pinCached(pid);
+        if (cached != null) {
+            policy.accessed(pid);
+            return cached;
+        }
+        int frames = framesFor(pid);
+        makeRoom(frames, ring);
+        Frame frame = new Frame(bPage, frames);
+        frame.pin();
+        putFrame(pid, frame);
+        if (ring != null) {
+            adopt(ring, pid, frame);
+        }
+        return frame;
+    }
+
+    /**
+     * Evicts until frames more frames fit: the oldest page of ring first,
+     * if there is a full ring, then whatever the policy picks.
+     */
+    private synchronized void makeRoom(int frames, BufferRing ring) throws DbException {
+        if (ring != null) {
+            while (ring.isFull()) {
+                PageId oldest = ring.removeOldest();
+                Frame f = pageTable.get(oldest);
+                if (f != null && f.ring == ring && tryEvict(oldest, f, false)) {
+                    break;
+                }
+            }
+        }
+        while (usedFrames + frames > bufSize && !pageTable.isEmpty()) {
+            evictPage();
+        }
+    }
+
+    private synchronized void adopt(BufferRing ring, PageId pid, Frame frame) {
+        frame.ring = ring;
+        ring.add(pid);
+    }
+
+    /**
+     * Returns how many frames a page of the given page's table takes: its
+     * file's page size rounded up to whole frames of getPageSize() bytes.
+     */
+    private static int framesFor(PageId pid) {
+        DbFile f;
+        try {
+            f = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        } catch (NoSuchElementException e) {
+            return 1;
+        }
+        if (!(f instanceof HeapFile)) {
+            return 1;
+        }
+        return Math.max(1, (((HeapFile) f).getPageSize() + pageSize - 1) / pageSize);
+    }
+
+    /**
+     * Pins the frame cached for pid. If cleanPages is writing the page, this
+     * waits until it is done rather than reading back what is on disk.
+     *
+     * @return the pinned frame, or null if pid isn't cached or its frame is
+     *         being evicted
+     */
+    private synchronized Frame pinCached(PageId pid) throws DbException {
+        for (;;) {
+            Frame cached = pageTable.get(pid);
+            if (cached == null || cached.pin()) {
+                return cached;
+            }
+            if (!cleaning.contains(pid)) {
+                return null;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DbException("interrupted waiting for " + pid + " to be written");
+            }
+        }
+    }
+
+    private synchronized void putFrame(PageId pid, Frame frame) {
+        Frame old = pageTable.put(pid, frame);
+        if (old != null) {
+            usedFrames -= old.size;
+            releaseSlot(old);
         } else {
-            if (bPageMap.size() >= bufSize) {
-                evictPage();
+            policy.admitted(pid);
+        }
+        usedFrames += frame.size;
+    }
+
+    private synchronized void removePage(PageId pid) {
+        Frame old = pageTable.remove(pid);
+        if (old != null) {
+            if (inFlight.containsKey(pid)) {
+                evictedInFlight.add(pid);
             }
+            usedFrames -= old.size;
+            policy.removed(pid);
+            releaseSlot(old);
+        }
+    }
+
+    /** Gives a frame's PageArena frame back, if it has one. */
+    private synchronized void releaseSlot(Frame frame) {
+        if (frame.slot < 0) {
+            return;
+        }
+        // whoever still holds the page keeps a copy of its bytes
+        Page p = frame.page;
+        if (p instanceof HeapPage) {
+            ((HeapPage) p).detach();
+        }
+        arena.release(frame.slot);
+        frame.slot = -1;
+        notifyAll();
+    }
+
+    /** Counts a use of a cached page towards its eviction priority. */
+    private void touch(PageId pid) {
+        if (pageTable.containsKey(pid)) {
+            policy.accessed(pid);
+        }
+    }
+
+    /** Number of getPage calls that found their page in the pool. */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /** Number of getPage calls that had to read their page. */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /** Number of pages evicted to make room. */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /** Fraction of getPage calls that were hits, or 0 before the first call. */
+    public double getHitRatio() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * Number of times a page had to be evicted but every unpinned page was
+     * dirty. Under NO STEAL such a getPage fails; under STEAL a dirty page
+     * is written and evicted instead.
+     */
+    public long getNoCleanVictim() {
+        return noCleanVictim.sum();
+    }
+
+    /** Number of pages written back to their files. */
+    public long getPagesWritten() {
+        return pagesWritten.sum();
+    }
+
+    /**
+     * Number of writes getPagesWritten() pages took; a run of adjacent pages
+     * of one HeapFile is written at once.
+     */
+    public long getWriteBatches() {
+        return writeBatches.sum();
+    }
+
+    /** Zeroes the hit, miss, eviction and write counters. */
+    public void resetStats() {
+        hits.reset();
+        misses.reset();
+        evictions.reset();
+        noCleanVictim.reset();
+        pagesWritten.reset();
+        writeBatches.reset();
+    }
+
+    /**
+     * Starts a PageCleaner that writes dirty pages of committed
+     * transactions in the background, at most maxPagesPerSecond pages a
+     * second. Replaces the pool's running cleaner, if any.
+     */
+    public PageCleaner startCleaner(int maxPagesPerSecond) {
+        PageCleaner c = new PageCleaner(this, maxPagesPerSecond);
+        stopCleaner();
+        synchronized (this) {
+            cleaner = c;
+        }
+        c.start();
+        return c;
+    }
+
+    /** Stops the pool's PageCleaner, if it has one. */
+    public void stopCleaner() {
+        PageCleaner c;
+        synchronized (this) {
+            c = cleaner;
+            cleaner = null;
+        }
+        // outside our monitor: the cleaner may be waiting for it in cleanPages
+        if (c != null) {
+            c.shutdown();
+        }
+    }
+
+    /** Returns the pool's running PageCleaner, or null. */
+    public PageCleaner getCleaner() {
+        return cleaner;
+    }
+
+    /**
+     * Writes up to max cleanable pages, those next in line for eviction
+     * first, and marks them clean. The pages are picked under the monitor
+     * but written without it, so misses and evictions carry on meanwhile.
+     *
+     * @return the number of pages written and the number of writes
+     */
+    int[] cleanPages(int max) throws IOException {
+        ArrayList<Frame> claimed = new ArrayList<Frame>();
+        ArrayList<Page> pages = new ArrayList<Page>();
+        synchronized (this) {
+            for (Iterator<PageId> victims = policy.victims(); victims.hasNext() && pages.size() < max; ) {
+                PageId pid = victims.next();
+                Frame f = pageTable.get(pid);
+                if (f == null || !isCleanable(f.page)) {
+                    continue;
+                }
+                // claimed like an eviction victim, so that nobody pins the
+                // page to change it while it is written; pinned pages wait
+                // for the next round
+                if (!f.pins.compareAndSet(0, -1)) {
+                    continue;
+                }
+                if (!isCleanable(f.page)) {
+                    f.pins.set(0);
+                    continue;
+                }
+                claimed.add(f);
+                cleaning.add(pid);
+                pages.add(f.page);
+            }
+        }
+        boolean written = false;
+        try {
+            // committed pages only, so there is nothing to log first
+            int writes = writePages(pages);
+            written = true;
+            return new int[]{pages.size(), writes};
+        } finally {
+            synchronized (this) {
+                if (written) {
+                    for (Page p : pages) {
+                        p.markDirty(false, null);
+                    }
+                    clearRecLsn(pages);
+                }
+                for (Frame f : claimed) {
+                    f.pins.set(0);
+                }
+                for (Page p : pages) {
+                    cleaning.remove(p.getId());
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * A dirty page may be written before it is evicted once the transaction
+     * that dirtied it has committed. Under FORCE, commit has already written
+     * such pages, so only NO FORCE leaves any.
+     */
+    private boolean isCleanable(Page p) {
+        TransactionId tid = p.isDirty();
+        return tid != null && !dirtyMap.containsKey(tid);
+    }
+
+    /**
+     * Makes sure the log holds the update of every page that a running
+     * transaction dirtied before the page is written (STEAL, or flushPages
+     * under FORCE), so an abort or recovery can put the before image back.
+     * Committed pages were logged at commit.
+     */
+    private void logUncommitted(Collection<Page> pages) throws IOException {
+        LogFile log = Database.getLogFile();
+        long lsn = 0;
+        for (Page p : pages) {
+            TransactionId tid = p.isDirty();
+            if (tid != null && dirtyMap.containsKey(tid)) {
+                setRecLsn(pageTable.get(p.getId()), log);
+                lsn = log.logWrite(tid, p.getBeforeImage(), p);
+                stolen.add(tid);
+            }
+        }
+        if (lsn > 0) {
+            log.force(lsn);
+        }
+    }
+
+    /**
+     * Writes pages to their files, coalescing adjacent pages of a HeapFile.
+     *
+     * @return the number of writes
+     */
+    private synchronized int writeBack(Collection<Page> pages) throws IOException {
+        logUncommitted(pages);
+        int writes = writePages(pages);
+        clearRecLsn(pages);
+        return writes;
+    }
+
+    /**
+     * Does writeBack's writes; the caller has made sure that the pages'
+     * updates are on the log and that nobody changes them meanwhile.
+     */
+    private int writePages(Collection<Page> pages) throws IOException {
+        HashMap<Integer, ArrayList<Page>> byTable = new HashMap<Integer, ArrayList<Page>>();
+        for (Page p : pages) {
+            byTable.computeIfAbsent(p.getId().getTableId(), t -> new ArrayList<Page>()).add(p);
+        }
+        int writes = 0;
+        for (Map.Entry<Integer, ArrayList<Page>> e : byTable.entrySet()) {
+            DbFile file = Database.getCatalog().getDatabaseFile(e.getKey());
+            if (file instanceof HeapFile) {
+                writes += ((HeapFile) file).writePages(e.getValue());
+            } else {
+                for (Page p : e.getValue()) {
+                    file.writePage(p);
+                    writes++;
+                }
+            }
+            fileWritten(file);
+        }
+        pagesWritten.add(pages.size());
+        writeBatches.add(writes);
+        return writes;
+    }
+
+    /**
+     * Notes that pages were just written to file without going through
+     * writeBack, so that the next checkpoint forces them.
+     */
+    void fileWritten(DbFile file) {
+        writtenFiles.add(file);
+    }
+
+    /**
+     * Forces every file pages were written to since the last call. A
+     * checkpoint does this before the log before it can go: the dirty page
+     * table leaves out written pages, which are only safe once on disk.
+     *
+     * @see LogFile#logCheckpoint
+     */
+    public void forceWrittenFiles() throws IOException {
+        for (Iterator<DbFile> it = writtenFiles.iterator(); it.hasNext(); ) {
+            DbFile file = it.next();
+            // a write from here on adds it again
+            it.remove();
+            try {
+                file.force();
+            } catch (IOException e) {
+                writtenFiles.add(file);
+                throw e;
+            }
+        }
+    }
+
+    /** Notes that the given pages' updates are on disk. */
+    private synchronized void clearRecLsn(Collection<Page> pages) {
+        for (Page p : pages) {
+            Frame f = pageTable.get(p.getId());
+            if (f != null && f.page == p) {
+                f.recLsn = 0;
+            }
+        }
+    }
+
+    /**
+     * Notes that the log is about to get an update of f's page, unless an
+     * earlier one is still not on disk. This happens before the record is
+     * appended, so a checkpoint never misses a record before it.
+     */
+    private static void setRecLsn(Frame f, LogFile log) {
+        if (f != null && f.recLsn == 0) {
+            f.recLsn = log.getEndLsn();
+        }
+    }
+
+    /**
+     * Returns the dirty page table for a fuzzy checkpoint: every cached
+     * page with updates on the log that may not have been written yet,
+     * with the LSN of the first of them. Redo after a crash has to start at
+     * the smallest. Takes no monitor, so it doesn't hold up transactions.
+     *
+     * @see LogFile#logCheckpoint
+     */
+    public Map<PageId, Long> getDirtyPageTable() {
+        HashMap<PageId, Long> dirty = new HashMap<PageId, Long>();
+        pageTable.forEach((pid, f) -> {
+            long lsn = f.recLsn;
+            if (lsn != 0) {
+                dirty.put(pid, lsn);
+            }
+        });
+        return dirty;
+    }
+
+    /**
+     * Returns the number of frames of getPageSize() bytes the cached pages
+     * take up; at most the numPages given to the constructor, unless a single
+     * page is larger than the whole pool.
+     */
+    public synchronized int getUsedFrames() {
+        return usedFrames;
+    }
+
+    /**
+     * Sets how many pages ahead of a detected sequential scan are read in
+     * the background. 0 turns read-ahead off.
+     */
+    public void setReadAheadPages(int pages) {
+        readAheadPages = Math.max(0, pages);
+    }
+
+    public int getReadAheadPages() {
+        return readAheadPages;
+    }
+
+    /**
+     * Asks for the given pages to be read into the pool in the background, in
+     * order. No locks are taken; the reader still locks each page when it
+     * calls getPage. Only free frames are used, so read-ahead never evicts
+     * anything, and the request is silently cut short when the pool fills.
+     *
+     * @return how many of the leading pages in pids are cached, in flight or
+     *         now scheduled
+     */
+    public int readAhead(List<PageId> pids) {
+        int handled = 0;
+        for (PageId pid : pids) {
+            if (pageTable.containsKey(pid) || inFlight.containsKey(pid)) {
+                handled++;
+                continue;
+            }
+            if (usedFrames + inFlight.size() >= bufSize) {
+                break;
+            }
+            CountDownLatch latch = new CountDownLatch(1);
+            if (inFlight.putIfAbsent(pid, latch) == null) {
+                prefetchIssued.incrementAndGet();
+                readAheadExecutor.execute(() -> {
+                    try {
+                        prefetchPage(pid);
+                    } finally {
+                        synchronized (this) {
+                            inFlight.remove(pid);
+                            evictedInFlight.remove(pid);
+                        }
+                        latch.countDown();
+                    }
+                });
+            }
+            handled++;
+        }
+        return handled;
+    }
+
+    private void prefetchPage(PageId pid) {
+        try {
             DbFile dbfile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-            Page bPage = dbfile.readPage(pid);
-            bPageMap.put(pid, bPage);
-            LRUCache.add(pid);
-            return bPage;
+            if (arena != null && dbfile instanceof HeapFile && ((HeapFile) dbfile).getPageSize() == pageSize) {
+                prefetchArenaPage(pid, (HeapFile) dbfile);
+                return;
+            }
+            Page p = dbfile.readPage(pid);
+            if (p == null) {
+                return;
+            }
+            int frames = framesFor(pid);
+            synchronized (this) {
+                if (pageTable.containsKey(pid) || evictedInFlight.contains(pid) || usedFrames + frames > bufSize) {
+                    prefetchWasted.incrementAndGet();
+                    return;
+                }
+                putFrame(pid, new Frame(p, frames));
+                prefetched.add(pid);
+            }
+        } catch (NoSuchElementException e) {
+            // the table was dropped from the catalog meanwhile
+            prefetchWasted.incrementAndGet();
+        }
+    }
+
+    /**
+     * Read-ahead into a free PageArena frame; like installArenaPage, but
+     * never evicts anything.
+     */
+    private void prefetchArenaPage(PageId pid, HeapFile file) {
+        int slot;
+        synchronized (this) {
+            if (pageTable.containsKey(pid) || usedFrames + 1 > bufSize) {
+                prefetchWasted.incrementAndGet();
+                return;
+            }
+            slot = arena.allocate();
+            if (slot < 0) {
+                prefetchWasted.incrementAndGet();
+                return;
+            }
+            usedFrames++;
+        }
+        HeapPage page = file.readPageInto(pid, arena.frame(slot));
+        synchronized (this) {
+            usedFrames--;
+            notifyAll();
+            if (page == null || pageTable.containsKey(pid) || evictedInFlight.contains(pid)) {
+                arena.release(slot);
+                prefetchWasted.incrementAndGet();
+                return;
+            }
+            Frame frame = new Frame(page, 1);
+            frame.slot = slot;
+            putFrame(pid, frame);
+            prefetched.add(pid);
+        }
+    }
+
+    /** Number of pages scheduled by read-ahead. */
+    public long getPrefetchIssued() {
+        return prefetchIssued.get();
+    }
+
+    /** Number of read-ahead pages that were later requested through getPage. */
+    public long getPrefetchHits() {
+        return prefetchHits.get();
+    }
+
+    /** Number of read-ahead pages evicted or dropped before anyone used them. */
+    public long getPrefetchWasted() {
+        return prefetchWasted.get();
+    }
+
+    /**
+     * Logs the update of each of tid's pages still in the pool (pages that
+     * were stolen are on the log already) and forces the log with tid's
+     * COMMIT record. The pages stay dirty; under NO FORCE they are written
+     * later by eviction or the PageCleaner, under FORCE by the caller.
+     *
+     * @return the pages tid dirtied, or null if it dirtied none
+     */
+    private Set<PageId> logCommit(TransactionId tid) throws IOException {
+        LogFile log = Database.getLogFile();
+        Set<PageId> pids = dirtyMap.get(tid);
+        if (pids == null && !log.isLive(tid)) {
+            // read only, and never logged anything
+            return null;
+        }
+        if (pids != null) {
+            for (PageId pid : pids) {
+                Frame f = pageTable.get(pid);
+                if (f != null && tid.equals(f.page.isDirty())) {
+                    setRecLsn(f, log);
+                    log.logWrite(tid, f.page.getBeforeImage(), f.page);
+                    f.page.setBeforeImage();
+                }
+            }
+        }
+        log.logCommit(tid);
+        // the pages are committed now, so the PageCleaner may write them
+        dirtyMap.remove(tid);
+        stolen.remove(tid);
+        return pids;
+    }
+
+    /** Writes the pages of a committed transaction that are still dirty (FORCE). */
+    private synchronized void writeCommitted(TransactionId tid, Set<PageId> pids) throws IOException {
+        ArrayList<Page> pages = new ArrayList<Page>();
+        for (PageId pid : pids) {
+            Frame f = pageTable.get(pid);
+            if (f != null && tid.equals(f.page.isDirty())) {
+                pages.add(f.page);
+            }
+        }
+        writeBack(pages);
+        for (Page p : pages) {
+            p.markDirty(false, null);
+        }
+    }
+
+    /**
+     * Abort under STEAL. The pages still in the pool go back to their before
+     * images, which are written out since the version on disk may be newer
+     * (stolen) or older (committed but not yet written). If some of tid's
+     * pages were stolen, the LogFile then puts back their first before
+     * images, and logs the abort.
+     */
+    private void rollback(TransactionId tid) throws IOException {
+        Set<PageId> pids = dirtyMap.get(tid);
+        if (pids != null) {
+            ArrayList<Page> before = new ArrayList<Page>();
+            synchronized (this) {
+                for (PageId pid : pids) {
+                    Frame f = pageTable.get(pid);
+                    if (f != null && tid.equals(f.page.isDirty())) {
+                        Page p = f.page.getBeforeImage();
+                        f.page = p;
+                        before.add(p);
+                    }
+                }
+                dirtyMap.remove(tid);
+                writeBack(before);
+            }
+        }
+        revertBulkPages(tid);
+        LogFile log = Database.getLogFile();
+        if (stolen.remove(tid) || log.isLive(tid)) {
+            log.logAbort(tid);
         }
-//        return null;
     }
 
-    public void revertPages(TransactionId tid) {
+    public void revertPages(TransactionId tid) throws IOException {
+        revertBulkPages(tid);
         if (!dirtyMap.containsKey(tid)) return;
         for (PageId pid : dirtyMap.get(tid)) {
             DbFile dbfile = Database.getCatalog().getDatabaseFile(pid.getTableId());
             Page cleanPage = dbfile.readPage(pid);
-            bPageMap.put(pid, cleanPage);
-
+            Frame frame = pageTable.get(pid);
+            if (frame != null) {
+                frame.page = cleanPage;
+            } else {
+                putFrame(pid, new Frame(cleanPage, framesFor(pid)));
+            }
+            // the map still has the aborted inserts' idea of the page
+            if (dbfile instanceof HeapFile && cleanPage instanceof HeapPage) {
+                ((HeapFile) dbfile).pageReverted((HeapPage) cleanPage);
+            }
         }
         dirtyMap.remove(tid);
     }
 
+    /**
+     * Records that tid wrote the given pages straight to disk, bypassing the
+     * pool, so they can be emptied again if tid aborts. Any cached copies of
+     * the pages are stale and are dropped.
+     *
+     * @see HeapFile#bulkAppend
+     */
+    public synchronized void bulkAppended(TransactionId tid, List<PageId> pids) {
+        ArrayList<PageId> appended = bulkPages.get(tid);
+        if (appended == null) {
+            appended = new ArrayList<PageId>();
+            bulkPages.put(tid, appended);
+        }
+        for (PageId pid : pids) {
+            discardPage(pid);
+            appended.add(pid);
+        }
+    }
+
+    /**
+     * Overwrites the pages tid bulk appended with empty ones. Pages that
+     * can't be written stay recorded, and tid keeps its locks on them, so
+     * nobody reads the aborted rows and the abort can be tried again.
+     *
+     * @throws IOException the first failure, once every page was tried
+     */
+    private synchronized void revertBulkPages(TransactionId tid) throws IOException {
+        ArrayList<PageId> appended = bulkPages.remove(tid);
+        if (appended == null) return;
+        ArrayList<PageId> failed = new ArrayList<PageId>();
+        IOException error = null;
+        for (PageId pid : appended) {
+            discardPage(pid);
+            try {
+                DbFile dbfile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                dbfile.writePage(((HeapFile) dbfile).createEmptyPage(pid.getPageNumber()));
+                fileWritten(dbfile);
+            } catch (IOException e) {
+                failed.add(pid);
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+        if (dirtyMap.containsKey(tid)) {
+            dirtyMap.get(tid).removeAll(appended);
+        }
+        if (error != null) {
+            bulkPages.put(tid, failed);
+            throw error;
+        }
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -168,8 +1198,27 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1|lab2
         if (commit) {
-            flushPages(tid);
+            Set<PageId> pids = logCommit(tid);
+            if (!stealNoForce && pids != null) {
+                writeCommitted(tid, pids);
+            }
+            synchronized (this) {
+                // written by now; the log records go at a checkpoint
+                ArrayList<PageId> appended = bulkPages.remove(tid);
+                if (appended != null) {
+                    for (PageId pid : appended) {
+                        fileWritten(Database.getCatalog().getDatabaseFile(pid.getTableId()));
+                    }
+                }
+            }
+        } else if (stealNoForce) {
+            rollback(tid);
         } else {
+            // only flushPages and bulk appends write tid's pages early
+            LogFile log = Database.getLogFile();
+            if (stolen.remove(tid) || log.isLive(tid)) {
+                log.logAbort(tid);
+            }
             revertPages(tid);
         }
         Database.getLockManager().releaseAll(tid);
@@ -203,7 +1252,7 @@ public class BufferPool {
 //                dirtyMap.put(tid, new HashSet<>());
 //            }
 //            dirtyMap.get(tid).add(p.getId());
-            LRUCacheGet(p.getId());
+            touch(p.getId());
         }
         Debug.log("dirtyMap for tid " + tid + " is now " + dirtyMap.get(tid).toString());
     }
@@ -228,7 +1277,7 @@ public class BufferPool {
         ArrayList<Page> dirtyPages = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId()).deleteTuple(tid, t);
         for (Page p : dirtyPages) {
 //            p.markDirty(true, tid);
-            LRUCacheGet(p.getId());
+            touch(p.getId());
 //            if (!dirtyMap.containsKey(tid)) {
 //                dirtyMap.put(tid, new HashSet<>());
 //            }
@@ -244,8 +1293,8 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        bPageMap.forEach((pid, p) -> {
-            if (p.isDirty() != null) {
+        pageTable.forEach((pid, frame) -> {
+            if (frame.page.isDirty() != null) {
                 try {
                     flushPage(pid);
                 } catch (IOException e) {
@@ -266,6 +1315,17 @@ public class BufferPool {
     public synchronized void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
+        while (cleaning.contains(pid)) {
+            // cleanPages is still writing from the frame
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        removePage(pid);
+        prefetched.remove(pid);
     }
 
     /**
@@ -275,8 +1335,8 @@ public class BufferPool {
     private synchronized  void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        Page p = bPageMap.get(pid);
-        Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p);
+        Page p = pageTable.get(pid).page;
+        writeBack(Collections.singletonList(p));
         Debug.log("mark page clean");
         p.markDirty(false, null);
 
@@ -289,9 +1349,17 @@ public class BufferPool {
         // not necessary for lab1|lab2
         Debug.log("flushing pages for tid " + tid);
         if (dirtyMap.containsKey(tid)) {
+            ArrayList<Page> pages = new ArrayList<Page>();
             for (PageId pid : dirtyMap.get(tid)) {
                 Debug.log("flushing page " + pid + " tid " + tid);
-                flushPage(pid);
+                Frame f = pageTable.get(pid);
+                if (f != null) {
+                    pages.add(f.page);
+                }
+            }
+            writeBack(pages);
+            for (Page p : pages) {
+                p.markDirty(false, null);
             }
             dirtyMap.remove(tid);
         }
@@ -299,34 +1367,75 @@ public class BufferPool {
 
     /**
      * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Clean, unpinned pages are evicted first, in the order the
+     * EvictionPolicy picks; if there were dirty pages in the way the
+     * PageCleaner is woken. If every unpinned page is dirty, NO STEAL fails,
+     * while STEAL writes the first one out, logging it first if it is
+     * uncommitted.
      */
     private synchronized  void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
-        Iterator<PageId> pIt = LRUCache.iterator();
-        PageId pid = pIt.next();
-        while (pid != null) {
-            if (bPageMap.get(pid).isDirty() != null) {
-                pid = pIt.next();
-            } else {
-                break;
+        boolean passedDirty = false;
+        for (Iterator<PageId> victims = policy.victims(); victims.hasNext(); ) {
+            PageId pid = victims.next();
+            Frame f = pageTable.get(pid);
+            if (f != null && tryEvict(pid, f, false)) {
+                if (passedDirty && cleaner != null) {
+                    cleaner.wake();
+                }
+                return;
             }
+            passedDirty |= f != null && f.page.isDirty() != null;
         }
-        if (pid == null) throw new DbException("all dirty");
-        try {
-            flushPage(pid);
-            LRUCache.remove(pid);
-            bPageMap.remove(pid);
-        } catch (IOException e) {
-            e.printStackTrace();
+        noCleanVictim.increment();
+        if (cleaner != null) {
+            cleaner.wake();
         }
+        if (stealNoForce) {
+            for (Iterator<PageId> victims = policy.victims(); victims.hasNext(); ) {
+                PageId pid = victims.next();
+                Frame f = pageTable.get(pid);
+                if (f != null && tryEvict(pid, f, true)) {
+                    return;
+                }
+            }
+        }
+        throw new DbException("all dirty");
     }
 
-    private void LRUCacheGet(PageId pid) {
-        if (LRUCache.contains(pid)) {
-            LRUCache.remove(pid);
-            LRUCache.add(pid);
+    /**
+     * Evicts page pid, held in frame f, unless it is dirty or pinned.
+     *
+     * @return whether the page was evicted
+     */
+    private synchronized boolean tryEvict(PageId pid, Frame f, boolean dirtyOk) throws DbException {
+        if (!dirtyOk && f.page.isDirty() != null) {
+            return false;
+        }
+        // fails if a reader has it pinned
+        if (!f.pins.compareAndSet(0, -1)) {
+            return false;
+        }
+        if (f.page.isDirty() != null) {
+            if (!dirtyOk) {
+                f.pins.set(0);
+                return false;
+            }
+            // STEAL; the claim keeps the page's writer out while we write it
+            try {
+                writeBack(Collections.singletonList(f.page));
+            } catch (IOException e) {
+                f.pins.set(0);
+                throw new DbException("couldn't write " + pid + ": " + e);
+            }
+            f.page.markDirty(false, null);
+        }
+        removePage(pid);
+        evictions.increment();
+        if (prefetched.remove(pid)) {
+            prefetchWasted.incrementAndGet();
         }
+        return true;
     }
 }
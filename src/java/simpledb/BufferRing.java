@@ -0,0 +1,49 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+
+/**
+ * A BufferRing caps how much of the BufferPool one large sequential scan
+ * can take, like PostgreSQL's buffer access strategies. Pages the scan
+ * reads are remembered in the ring; once it holds size pages, the next page
+ * the scan reads replaces the oldest one instead of a page chosen by the
+ * EvictionPolicy. The scan then cycles through a few frames of its own, and
+ * the pages other transactions use stay cached.
+ * <p>
+ * A ring page that somebody else uses, or that becomes dirty or pinned, is
+ * dropped from the ring and left to the EvictionPolicy.
+ * <p>
+ * Rings are not thread-safe; one belongs to one scan. The BufferPool only
+ * touches a ring with its monitor held.
+ *
+ * @see BufferPool#getScanRing
+ * @see BufferPool#getPage(TransactionId, PageId, Permissions, BufferRing)
+ */
+public class BufferRing {
+
+    private final int size;
+    // the ring's pages, oldest first
+    private final ArrayDeque<PageId> pages;
+
+    BufferRing(int size) {
+        this.size = size;
+        this.pages = new ArrayDeque<PageId>(size);
+    }
+
+    /** Returns the number of pages the ring recycles. */
+    public int size() {
+        return size;
+    }
+
+    boolean isFull() {
+        return pages.size() >= size;
+    }
+
+    void add(PageId pid) {
+        pages.addLast(pid);
+    }
+
+    PageId removeOldest() {
+        return pages.pollFirst();
+    }
+}
@@ -143,6 +143,15 @@ public class Catalog {
     /** Delete all tables from the catalog */
     public void clear() {
         // some code goes here
+        for (Table table : tableMap.values()) {
+            if (table.dbFile instanceof Closeable) {
+                try {
+                    ((Closeable) table.dbFile).close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
         name2IdMap = new HashMap<String, Integer>();
         tableMap = new HashMap<Integer, Table>();
         tableIds = new ArrayList<Integer>();
@@ -190,7 +199,38 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                // an optional "columnar" after the field list stores the table by
+                // column, "compact" stores it in COMPACT heap pages, and
+                // "pagesize=N" gives a new heap file N-byte pages
+                String format = line.substring(line.indexOf(")") + 1).trim();
+                File dataFile = new File(baseFolder+"/"+name + ".dat");
+                HeapFile.PageFormat pageFormat = HeapFile.PageFormat.FIXED;
+                int tablePageSize = 0;
+                boolean columnar = false;
+                for (String opt : format.split("\\s+")) {
+                    if (opt.isEmpty()) {
+                        continue;
+                    } else if (opt.equalsIgnoreCase("columnar")) {
+                        columnar = true;
+                    } else if (opt.equalsIgnoreCase("compact")) {
+                        pageFormat = HeapFile.PageFormat.COMPACT;
+                    } else if (opt.toLowerCase().startsWith("pagesize=")) {
+                        tablePageSize = Integer.parseInt(opt.substring("pagesize=".length()));
+                    } else {
+                        System.out.println("Unknown table format " + opt);
+                        System.exit(0);
+                        return;
+                    }
+                }
+                DbFile tabHf;
+                if (columnar) {
+                    tabHf = new ColumnFile(dataFile, t);
+                } else if (tablePageSize > 0 && dataFile.length() == 0) {
+                    // existing files keep whatever their header (or lack of one) says
+                    tabHf = HeapFile.create(dataFile, t, tablePageSize, pageFormat);
+                } else {
+                    tabHf = new HeapFile(dataFile, t, pageFormat);
+                }
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
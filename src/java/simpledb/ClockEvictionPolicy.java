@@ -0,0 +1,120 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * CLOCK: the pages sit on a ring with a reference bit each, which a hit
+ * sets. Looking for a victim, the hand sweeps the ring, clearing set bits
+ * and offering the pages whose bit was already clear. A hit is a single
+ * volatile write, and only if the bit was not already set; it never touches
+ * the ring, which only changes under the BufferPool's monitor.
+ * <p>
+ * The ring is an array of slots. A page takes a free slot, if there is one,
+ * and leaves its slot empty for the next page, so neither admitting nor
+ * removing a page moves the others; the array only grows if the pool holds
+ * more pages than ever before.
+ */
+public class ClockEvictionPolicy implements EvictionPolicy {
+
+    private static final class Entry {
+        final PageId pid;
+        final int slot;
+        volatile boolean referenced = true;
+
+        Entry(PageId pid, int slot) {
+            this.pid = pid;
+            this.slot = slot;
+        }
+    }
+
+    private final ConcurrentHashMap<PageId, Entry> entries = new ConcurrentHashMap<>();
+    private Entry[] ring = new Entry[16];
+    // slots in use so far; the hand goes round [0, size)
+    private int size = 0;
+    // empty slots below size
+    private int[] free = new int[16];
+    private int numFree = 0;
+    private int hand = 0;
+
+    public void admitted(PageId pid) {
+        Entry old = entries.get(pid);
+        if (old != null) {
+            old.referenced = true;
+            return;
+        }
+        int slot;
+        if (numFree > 0) {
+            slot = free[--numFree];
+        } else {
+            if (size == ring.length) {
+                ring = Arrays.copyOf(ring, 2 * size);
+            }
+            slot = size++;
+        }
+        Entry e = new Entry(pid, slot);
+        ring[slot] = e;
+        entries.put(pid, e);
+    }
+
+    public void accessed(PageId pid) {
+        Entry e = entries.get(pid);
+        if (e != null && !e.referenced) {
+            e.referenced = true;
+        }
+    }
+
+    public void removed(PageId pid) {
+        Entry e = entries.remove(pid);
+        if (e == null) {
+            return;
+        }
+        ring[e.slot] = null;
+        if (numFree == free.length) {
+            free = Arrays.copyOf(free, 2 * numFree);
+        }
+        free[numFree++] = e.slot;
+    }
+
+    public Iterator<PageId> victims() {
+        return new Iterator<PageId>() {
+            // two sweeps clear every bit and offer every page once
+            private int steps = 2 * size;
+            // found lazily, so the hand stops at the page the pool takes
+            private PageId next;
+
+            private PageId advance() {
+                while (steps > 0) {
+                    steps--;
+                    Entry e = ring[hand];
+                    hand = (hand + 1) % size;
+                    if (e == null) {
+                        continue;
+                    }
+                    if (e.referenced) {
+                        e.referenced = false;
+                    } else {
+                        return e.pid;
+                    }
+                }
+                return null;
+            }
+
+            public boolean hasNext() {
+                if (next == null) {
+                    next = advance();
+                }
+                return next != null;
+            }
+
+            public PageId next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                PageId pid = next;
+                next = null;
+                return pid;
+            }
+        };
+    }
+}
@@ -0,0 +1,299 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ColumnFile is a DbFile that stores each field of its TupleDesc in a page
+ * chain of its own, so that a scan that only needs a few columns of a wide
+ * table only reads those columns' pages. Column i lives in the file
+ * "&lt;f&gt;.i" next to the file given to the constructor; see ColumnPage for
+ * the page layout.
+ * <p>
+ * Rows are numbered in insertion order and a row's values sit at the same
+ * row number in every column. Inserts always append; the slots of deleted
+ * rows are not reused.
+ *
+ * @see ColumnPage
+ * @see SeqScan#setNeededColumns
+ */
+public class ColumnFile implements DbFile, Closeable {
+
+    private final int tableId;
+    private final File file;
+    private final TupleDesc tupleDesc;
+    private final int[] slotsPerPage;
+    private final FileChannel[] channels;
+    // number of row numbers handed out so far
+    private final AtomicInteger numRows = new AtomicInteger();
+
+    /**
+     * Constructs a column file whose column files are named after f.
+     *
+     * @param f  the base name of the column files; it is also what
+     *           identifies the table
+     * @param td the schema of the table
+     */
+    public ColumnFile(File f, TupleDesc td) {
+        this.tableId = f.getAbsoluteFile().hashCode();
+        this.file = f;
+        this.tupleDesc = td;
+        this.slotsPerPage = new int[td.numFields()];
+        for (int c = 0; c < slotsPerPage.length; c++) {
+            slotsPerPage[c] = ColumnPage.getNumSlots(td.getFieldType(c));
+        }
+        this.channels = new FileChannel[td.numFields()];
+        numRows.set(countRows());
+    }
+
+    /**
+     * Returns the row count implied by the last page of column 0.
+     */
+    private int countRows() {
+        int pgSize = BufferPool.getPageSize();
+        int pages = (int) (getColumnFile(0).length() / pgSize);
+        if (pages == 0) {
+            return 0;
+        }
+        ColumnPageId last = new ColumnPageId(tableId, 0, pages - 1);
+        try {
+            ColumnPage page = new ColumnPage(last, tupleDesc.getFieldType(0), readData(last));
+            return (pages - 1) * slotsPerPage[0] + page.lastUsedSlot() + 1;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return pages * slotsPerPage[0];
+        }
+    }
+
+    /**
+     * Returns the base File of this table; the columns are stored in files
+     * named after it.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the File that stores column c.
+     */
+    public File getColumnFile(int c) {
+        return new File(file.getPath() + "." + c);
+    }
+
+    public int getId() {
+        return tableId;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return tupleDesc;
+    }
+
+    /**
+     * Returns the number of pages in the page chain of column c.
+     */
+    public int numPages(int c) {
+        return (numRows.get() + slotsPerPage[c] - 1) / slotsPerPage[c];
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        ColumnPageId cpid = (ColumnPageId) pid;
+        try {
+            return new ColumnPage(cpid, tupleDesc.getFieldType(cpid.getColumn()), readData(cpid));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    private byte[] readData(ColumnPageId pid) throws IOException {
+        int pgSize = BufferPool.getPageSize();
+        ByteBuffer buf = ByteBuffer.allocate(pgSize);
+        FileChannel ch = getChannel(pid.getColumn());
+        long offset = (long) pgSize * pid.getPageNumber();
+        // past the end of the column, the page reads as empty
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, offset + buf.position()) < 0) {
+                break;
+            }
+        }
+        return buf.array();
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        ColumnPageId pid = (ColumnPageId) page.getId();
+        int pgSize = BufferPool.getPageSize();
+        ByteBuffer buf = ByteBuffer.wrap(page.getPageData(), 0, pgSize);
+        FileChannel ch = getChannel(pid.getColumn());
+        long offset = (long) pgSize * pid.getPageNumber();
+        while (buf.hasRemaining()) {
+            ch.write(buf, offset + buf.position());
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void force() throws IOException {
+        for (int c = 0; c < channels.length; c++) {
+            if (getColumnFile(c).exists()) {
+                getChannel(c).force(true);
+            }
+        }
+    }
+
+    private synchronized FileChannel getChannel(int c) throws IOException {
+        if (channels[c] == null || !channels[c].isOpen()) {
+            channels[c] = new RandomAccessFile(getColumnFile(c), "rw").getChannel();
+        }
+        return channels[c];
+    }
+
+    public synchronized void close() throws IOException {
+        for (int c = 0; c < channels.length; c++) {
+            if (channels[c] != null) {
+                channels[c].close();
+                channels[c] = null;
+            }
+        }
+    }
+
+    private ColumnPageId pageOf(int c, int row) {
+        return new ColumnPageId(tableId, c, row / slotsPerPage[c]);
+    }
+
+    private int rowOf(RecordId rid) {
+        return rid.getPageId().getPageNumber() * slotsPerPage[0] + rid.getTupleNumber();
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        if (!t.getTupleDesc().equals(tupleDesc)) {
+            throw new DbException("tuple does not match the TupleDesc of table " + tableId);
+        }
+        int row = numRows.getAndIncrement();
+        ArrayList<Page> dirtied = new ArrayList<Page>(tupleDesc.numFields());
+        for (int c = 0; c < tupleDesc.numFields(); c++) {
+            ColumnPageId pid = pageOf(c, row);
+            ColumnPage page = (ColumnPage) Database.getBufferPool().pinPage(tid, pid, Permissions.READ_WRITE);
+            try {
+                page.setField(row % slotsPerPage[c], t.getField(c));
+                page.markDirty(true, tid);
+            } finally {
+                Database.getBufferPool().unpinPage(pid);
+            }
+            dirtied.add(page);
+        }
+        t.setRecordId(new RecordId(pageOf(0, row), row % slotsPerPage[0]));
+        return dirtied;
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !(rid.getPageId() instanceof ColumnPageId) || rid.getPageId().getTableId() != tableId) {
+            throw new DbException("tuple is not stored in table " + tableId);
+        }
+        int row = rowOf(rid);
+        ArrayList<Page> dirtied = new ArrayList<Page>(tupleDesc.numFields());
+        for (int c = 0; c < tupleDesc.numFields(); c++) {
+            ColumnPageId pid = pageOf(c, row);
+            ColumnPage page = (ColumnPage) Database.getBufferPool().pinPage(tid, pid, Permissions.READ_WRITE);
+            try {
+                page.clearSlot(row % slotsPerPage[c]);
+                page.markDirty(true, tid);
+            } finally {
+                Database.getBufferPool().unpinPage(pid);
+            }
+            dirtied.add(page);
+        }
+        return dirtied;
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        int[] all = new int[tupleDesc.numFields()];
+        for (int c = 0; c < all.length; c++) {
+            all[c] = c;
+        }
+        return new ColumnFileIterator(tid, all);
+    }
+
+    /**
+     * Returns an iterator that only reads the given columns. The tuples it
+     * returns have the full TupleDesc of the table, but the fields of all
+     * other columns are left null.
+     *
+     * @param columns indexes into the table's TupleDesc; if empty, rows are
+     *                still returned (with every field null)
+     */
+    public DbFileIterator iterator(TransactionId tid, int[] columns) {
+        return new ColumnFileIterator(tid, columns);
+    }
+
+    private class ColumnFileIterator extends AbstractDbFileIterator {
+        private final TransactionId tid;
+        private final int[] columns;
+        // column whose presence bits decide which rows exist
+        private final int keyColumn;
+        private final ColumnPage[] pages;
+        private int row;
+        private boolean open = false;
+
+        ColumnFileIterator(TransactionId tid, int[] columns) {
+            this.tid = tid;
+            this.columns = columns.clone();
+            this.keyColumn = columns.length > 0 ? columns[0] : 0;
+            this.pages = new ColumnPage[tupleDesc.numFields()];
+        }
+
+        public void open() {
+            row = 0;
+            Arrays.fill(pages, null);
+            open = true;
+        }
+
+        private ColumnPage pageFor(int c) throws DbException, TransactionAbortedException {
+            int pgNo = row / slotsPerPage[c];
+            if (pages[c] == null || pages[c].getId().getPageNumber() != pgNo) {
+                pages[c] = (ColumnPage) Database.getBufferPool().getPage(tid,
+                        new ColumnPageId(tableId, c, pgNo), Permissions.READ_ONLY);
+            }
+            return pages[c];
+        }
+
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            if (!open) {
+                return null;
+            }
+            for (; row < numRows.get(); row++) {
+                if (!pageFor(keyColumn).isSlotUsed(row % slotsPerPage[keyColumn])) {
+                    continue;
+                }
+                Tuple t = new Tuple(tupleDesc);
+                for (int c : columns) {
+                    t.setField(c, pageFor(c).getField(row % slotsPerPage[c]));
+                }
+                t.setRecordId(new RecordId(pageOf(0, row), row % slotsPerPage[0]));
+                row++;
+                return t;
+            }
+            return null;
+        }
+
+        public void rewind() {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            Arrays.fill(pages, null);
+            open = false;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+
+/**
+ * ColumnPage holds the values of a single column for a run of consecutive
+ * rows of a ColumnFile. Its layout mirrors a HeapPage of one-field tuples: a
+ * header bitmap with one bit per slot (set = row present), followed by the
+ * fixed-width values. Slot i of page p of a column holds the value of row
+ * p * getNumSlots(type) + i; since the number of slots depends on the width
+ * of the column, narrow columns pack many more rows per page than wide ones.
+ *
+ * @see ColumnFile
+ */
+public class ColumnPage implements Page {
+
+    private final ColumnPageId pid;
+    private final Type type;
+    private final int numSlots;
+    private final int headerSize;
+    private final byte[] data;
+
+    private byte[] oldData;
+    private final Object oldDataLock = new Object();
+    private volatile TransactionId dirtyTid = null;
+
+    /**
+     * Create a ColumnPage from a set of bytes of data read from disk. The
+     * column's type is looked up through the catalog.
+     *
+     * @param id   the id of this page
+     * @param data the raw data of this page
+     */
+    public ColumnPage(ColumnPageId id, byte[] data) throws IOException {
+        this(id, Database.getCatalog().getTupleDesc(id.getTableId()).getFieldType(id.getColumn()), data);
+    }
+
+    ColumnPage(ColumnPageId id, Type type, byte[] data) throws IOException {
+        this.pid = id;
+        this.type = type;
+        this.numSlots = getNumSlots(type);
+        this.headerSize = (numSlots + 7) / 8;
+        if (data.length < BufferPool.getPageSize()) {
+            throw new EOFException("column page " + id + " is truncated");
+        }
+        this.data = data;
+    }
+
+    /**
+     * Returns the number of values of the given type that fit on a page.
+     */
+    public static int getNumSlots(Type type) {
+        return (BufferPool.getPageSize() * 8) / (type.getLen() * 8 + 1);
+    }
+
+    public ColumnPageId getId() {
+        return pid;
+    }
+
+    public int getNumSlots() {
+        return numSlots;
+    }
+
+    public boolean isSlotUsed(int i) {
+        return (data[i / 8] & (1 << (i % 8))) != 0;
+    }
+
+    /**
+     * Returns the value in slot i, or null if the slot is empty.
+     */
+    public Field getField(int i) {
+        if (!isSlotUsed(i)) {
+            return null;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(data, headerSize + i * type.getLen(), type.getLen());
+        try {
+            return type.parse(buf);
+        } catch (ParseException e) {
+            throw new IllegalStateException("corrupt value in slot " + i + " of " + pid, e);
+        }
+    }
+
+    /**
+     * Stores f in slot i and marks the slot used.
+     */
+    public void setField(int i, Field f) throws DbException {
+        if (f == null || f.getType() != type) {
+            throw new DbException("value does not match the type of column " + pid.getColumn());
+        }
+        snapshotBeforeImage();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(type.getLen());
+        try {
+            f.serialize(new DataOutputStream(baos));
+        } catch (IOException e) {
+            throw new DbException("couldn't serialize " + f);
+        }
+        byte[] bytes = baos.toByteArray();
+        System.arraycopy(bytes, 0, data, headerSize + i * type.getLen(), Math.min(bytes.length, type.getLen()));
+        data[i / 8] |= 1 << (i % 8);
+    }
+
+    /**
+     * Empties slot i.
+     */
+    public void clearSlot(int i) throws DbException {
+        if (!isSlotUsed(i)) {
+            throw new DbException("slot " + i + " of " + pid + " is already empty");
+        }
+        snapshotBeforeImage();
+        data[i / 8] &= ~(1 << (i % 8));
+    }
+
+    /**
+     * Returns the index of the last used slot, or -1 if the page is empty.
+     */
+    public int lastUsedSlot() {
+        for (int i = numSlots - 1; i >= 0; i--) {
+            if (isSlotUsed(i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public byte[] getPageData() {
+        return data.clone();
+    }
+
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()];
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        Database.getBufferPool().markDirtyMap(dirty, tid, pid);
+        dirtyTid = dirty ? tid : null;
+    }
+
+    public TransactionId isDirty() {
+        return dirtyTid;
+    }
+
+    public ColumnPage getBeforeImage() {
+        byte[] before;
+        synchronized (oldDataLock) {
+            before = oldData != null ? oldData : data.clone();
+        }
+        try {
+            return new ColumnPage(pid, type, before);
+        } catch (IOException e) {
+            // same length as this page; can't happen
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = data.clone();
+        }
+    }
+
+    private void snapshotBeforeImage() {
+        synchronized (oldDataLock) {
+            if (oldData == null) {
+                oldData = data.clone();
+            }
+        }
+    }
+}
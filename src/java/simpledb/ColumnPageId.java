@@ -0,0 +1,71 @@
+package simpledb;
+
+/**
+ * Unique identifier for ColumnPage objects: page pgNo of the page chain
+ * that holds one column of a ColumnFile.
+ */
+public class ColumnPageId implements PageId {
+    private final int tableId;
+    private final int column;
+    private final int pgNo;
+
+    /**
+     * Constructor. Create a page id structure for a specific page of a
+     * specific column of a specific table.
+     *
+     * @param tableId The table that is being referenced
+     * @param column The index of the column in the table's TupleDesc
+     * @param pgNo The page number in that column's page chain
+     */
+    public ColumnPageId(int tableId, int column, int pgNo) {
+        this.tableId = tableId;
+        this.column = column;
+        this.pgNo = pgNo;
+    }
+
+    /** @return the table associated with this PageId */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /** @return the column whose page chain this page belongs to */
+    public int getColumn() {
+        return column;
+    }
+
+    /**
+     * @return the page number within the column's page chain
+     */
+    public int getPageNumber() {
+        return pgNo;
+    }
+
+    public int hashCode() {
+        return (tableId * 4321 + pgNo) * 31 + column;
+    }
+
+    public boolean equals(Object o) {
+        if (!(o instanceof ColumnPageId)) {
+            return false;
+        }
+        ColumnPageId other = (ColumnPageId) o;
+        return tableId == other.tableId && column == other.column && pgNo == other.pgNo;
+    }
+
+    /**
+     * Return a representation of this object as an array of integers, for
+     * writing to disk. The order matches the constructor arguments.
+     */
+    public int[] serialize() {
+        return new int[]{tableId, column, pgNo};
+    }
+
+    @Override
+    public String toString() {
+        return "ColumnPageId{" +
+                "tableId=" + tableId +
+                ", column=" + column +
+                ", pgNo=" + pgNo +
+                '}';
+    }
+}
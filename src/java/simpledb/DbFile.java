@@ -28,6 +28,14 @@ public interface DbFile {
      */
     public void writePage(Page p) throws IOException;
 
+    /**
+     * Makes sure every page written so far is on disk, not just in the
+     * operating system's cache.
+     *
+     * @throws IOException if the sync fails
+     */
+    public void force() throws IOException;
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
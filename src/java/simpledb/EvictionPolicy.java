@@ -0,0 +1,53 @@
+package simpledb;
+
+import java.util.Iterator;
+
+/**
+ * An EvictionPolicy decides which page the BufferPool gives up when it needs
+ * room. The pool tells the policy about every page that enters or leaves it
+ * and about every hit, and asks it for victims in order of preference; the
+ * pool itself skips victims it cannot evict (dirty or pinned pages).
+ * <p>
+ * admitted, removed and victims are only called with the BufferPool's
+ * monitor held. accessed is called on the hit path without any lock, so it
+ * may race with all the other methods and should be cheap.
+ *
+ * @see BufferPool#BufferPool(int, EvictionPolicy)
+ */
+public interface EvictionPolicy {
+
+    /** pid was just read into the pool. */
+    void admitted(PageId pid);
+
+    /** pid was found in the pool. */
+    void accessed(PageId pid);
+
+    /** pid left the pool, by eviction or because it was discarded. */
+    void removed(PageId pid);
+
+    /**
+     * Returns the cached pages in the order they should be evicted. The pool
+     * stops at the first one it can evict and calls removed for it; the
+     * iterator is not used after that.
+     */
+    Iterator<PageId> victims();
+
+    /**
+     * Returns a new policy for a pool of capacity pages, by name: "lru",
+     * "clock" or "2q".
+     *
+     * @throws IllegalArgumentException for any other name
+     */
+    static EvictionPolicy create(String name, int capacity) {
+        switch (name.toLowerCase()) {
+            case "lru":
+                return new LruEvictionPolicy();
+            case "clock":
+                return new ClockEvictionPolicy();
+            case "2q":
+                return new TwoQueueEvictionPolicy(capacity);
+            default:
+                throw new IllegalArgumentException("unknown eviction policy " + name);
+        }
+    }
+}
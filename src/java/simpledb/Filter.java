@@ -41,6 +41,14 @@ public class Filter extends Operator {
             TransactionAbortedException {
         // some code goes here
         super.open();
+        // let the scan underneath reject tuples before building them
+        OpIterator base = child;
+        while (base instanceof Filter) {
+            base = ((Filter) base).child;
+        }
+        if (base instanceof SeqScan) {
+            ((SeqScan) base).pushPredicate(predicate);
+        }
         child.open();
 
     }
@@ -0,0 +1,186 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * FreeSpaceMap remembers how much room each page of a HeapFile has left, so
+ * that inserts can go straight to a page the tuple fits on instead of
+ * visiting every page of the table. Room is whatever HeapPage.getRoom()
+ * reports: free bytes on a COMPACT page, where tuples vary in size.
+ * <p>
+ * The map is only a hint. A page may still turn out to be too full (the
+ * caller then records its actual room and moves on), and pages the map has
+ * never heard of are assumed to have room for anything. That makes a missing
+ * or stale side file harmless: it just costs a few extra page visits.
+ * <p>
+ * In memory the map is a max tree over the pages: each node holds the most
+ * room of any page below it. Finding the first page with enough room, and
+ * recording a page's room, both take O(log n), however many nearly full
+ * pages come first.
+ * <p>
+ * The map is kept on disk in a side file next to the table: a header with
+ * the number of pages it covers, then one int per page, the room plus one
+ * (0 = unknown). A page's entry is written out when the page itself is
+ * written. A side file covering more pages than the table has belongs to an
+ * older version of the table and is ignored.
+ *
+ * @see HeapFile#insertTuple
+ */
+public class FreeSpaceMap implements Closeable {
+
+    private static final int MAGIC = 0x46534d32;
+    // magic, then the number of pages covered
+    static final int HEADER_SIZE = 8;
+    // room of a page the map knows nothing about
+    private static final int UNKNOWN = Integer.MAX_VALUE;
+
+    private final File file;
+    // pages the tree has leaves for, a power of two; pages past it are unknown
+    private int capacity = 1;
+    // tree[1] is the root, the children of node i are 2i and 2i + 1, and
+    // page pgNo's room is in leaf tree[capacity + pgNo]
+    private int[] tree = {UNKNOWN, UNKNOWN};
+    // pages covered by the side file
+    private int persistedPages = 0;
+    private FileChannel channel;
+
+    /**
+     * Loads the free space map stored in the given side file, if it exists
+     * and covers no more than the table's dataPages pages.
+     */
+    public FreeSpaceMap(File f, int dataPages) {
+        this.file = f;
+        if (!f.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            int pages = f.length() >= HEADER_SIZE && in.readInt() == MAGIC ? in.readInt() : -1;
+            if (pages >= 0 && pages <= dataPages && f.length() - HEADER_SIZE <= 4L * pages) {
+                grow(pages);
+                for (int pgNo = 0; pgNo < (f.length() - HEADER_SIZE) / 4; pgNo++) {
+                    int stored = in.readInt();
+                    tree[capacity + pgNo] = stored == 0 ? UNKNOWN : stored - 1;
+                }
+                for (int i = capacity - 1; i > 0; i--) {
+                    tree[i] = Math.max(tree[2 * i], tree[2 * i + 1]);
+                }
+                persistedPages = pages;
+                return;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        // not this table's: start from an empty map, where every page is a
+        // candidate, and a new side file
+        f.delete();
+    }
+
+    /**
+     * Returns the first page at or after pgNo that may have the given room,
+     * or -1 if every page below numPages is known to have less.
+     */
+    public synchronized int nextPageWithRoom(int pgNo, int numPages, int needed) {
+        int candidate = pgNo < capacity ? firstWithRoom(pgNo, needed) : -1;
+        if (candidate < 0) {
+            // past the leaves every page is unknown
+            candidate = Math.max(pgNo, capacity);
+        }
+        return candidate < numPages ? candidate : -1;
+    }
+
+    /**
+     * Returns the first page at or after pgNo, below capacity, whose leaf
+     * has the given room, or -1.
+     */
+    private int firstWithRoom(int pgNo, int needed) {
+        int i = capacity + pgNo;
+        // up until a subtree to the right has the room...
+        while (tree[i] < needed) {
+            while ((i & 1) == 1) {
+                if (i == 1) {
+                    return -1;
+                }
+                i >>= 1;
+            }
+            i++;
+        }
+        // ...then down to its leftmost page that has it
+        while (i < capacity) {
+            i = tree[2 * i] >= needed ? 2 * i : 2 * i + 1;
+        }
+        return i - capacity;
+    }
+
+    /**
+     * Records how much room page pgNo has left.
+     */
+    public synchronized void setRoom(int pgNo, int bytes) {
+        grow(pgNo + 1);
+        int i = capacity + pgNo;
+        tree[i] = bytes;
+        for (i >>= 1; i > 0; i >>= 1) {
+            tree[i] = Math.max(tree[2 * i], tree[2 * i + 1]);
+        }
+    }
+
+    private void grow(int pages) {
+        if (pages <= capacity) {
+            return;
+        }
+        int oldCapacity = capacity;
+        while (capacity < pages) {
+            capacity *= 2;
+        }
+        int[] old = tree;
+        tree = new int[2 * capacity];
+        Arrays.fill(tree, UNKNOWN);
+        System.arraycopy(old, oldCapacity, tree, capacity, oldCapacity);
+        for (int i = capacity - 1; i > 0; i--) {
+            tree[i] = Math.max(tree[2 * i], tree[2 * i + 1]);
+        }
+    }
+
+    /**
+     * Writes page pgNo's entry to the side file.
+     */
+    public void persist(int pgNo) throws IOException {
+        persist(pgNo, pgNo + 1);
+    }
+
+    /**
+     * Writes the entries of pages [fromPgNo, toPgNo) to the side file in one
+     * write.
+     */
+    public synchronized void persist(int fromPgNo, int toPgNo) throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            channel = new RandomAccessFile(file, "rw").getChannel();
+        }
+        if (toPgNo > persistedPages) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(toPgNo).flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            persistedPages = toPgNo;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(4 * (toPgNo - fromPgNo));
+        for (int pgNo = fromPgNo; pgNo < toPgNo; pgNo++) {
+            int bytes = pgNo < capacity ? tree[capacity + pgNo] : UNKNOWN;
+            buf.putInt(bytes == UNKNOWN ? 0 : bytes + 1);
+        }
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf, HEADER_SIZE + 4L * fromPgNo + buf.position());
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
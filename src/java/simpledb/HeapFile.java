@@ -1,7 +1,12 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
@@ -13,11 +18,84 @@ import java.util.*;
  * @author Sam Madden
  * @see simpledb.HeapPage#HeapPage
  */
-public class HeapFile implements DbFile {
+public class HeapFile implements DbFile, Closeable {
+    /**
+     * How pages are read from disk. CHANNEL reads each page into a fresh
+     * buffer with a positional read. MAPPED maps the file read-only and
+     * decodes pages straight out of the OS page cache; it suits large,
+     * rarely-updated tables that are mostly scanned. Writes always go
+     * through the channel.
+     */
+    public enum IoMode {
+        CHANNEL,
+        MAPPED
+    }
+
+    /**
+     * How tuples are laid out on the pages of the file. FIXED gives every
+     * tuple TupleDesc.getSize() bytes, with strings padded to
+     * Type.STRING_LEN. COMPACT drops the padding and packs variable-length
+     * tuples behind a slot directory, which fits several times as many short
+     * strings on a page. Only files created with {@link #create} record
+     * their format; any other file must always be opened with the format it
+     * was written in.
+     *
+     * @see HeapPage
+     */
+    public enum PageFormat {
+        FIXED,
+        COMPACT
+    }
+
+    /**
+     * System property selecting the IoMode of HeapFiles constructed without
+     * an explicit mode, e.g. -Dsimpledb.heapfile.io=mapped
+     */
+    public static final String IO_MODE_PROPERTY = "simpledb.heapfile.io";
+
+    // a single mapping can't exceed 2 GB, so the file is mapped in segments
+    private static final int MAP_SEGMENT_BYTES = 1 << 26;
+    // pages packed in memory and written together by bulkAppend
+    private static final int BULK_APPEND_PAGES = 64;
+    // the file is extended with zeroed pages this many at a time
+    private static final int PREALLOCATE_PAGES = 64;
+
+    /**
+     * Files created by {@link #create} start with a header block of this
+     * many bytes, ahead of page 0. It holds FILE_MAGIC, FILE_VERSION, the
+     * page size, the PageFormat ordinal and the page count as five
+     * big-endian ints; the rest is zero. Version 1 headers have no page
+     * count, and the file's length stands in for it.
+     */
+    public static final int FILE_HEADER_SIZE = 4096;
+    static final int FILE_MAGIC = 0x53444246; // "SDBF"
+    static final int FILE_VERSION = 2;
+    // where the page count is kept
+    private static final int PAGE_COUNT_OFFSET = 16;
+
+    /** COMPACT pages address their slots with unsigned 16-bit offsets. */
+    public static final int MAX_COMPACT_PAGE_SIZE = 65536;
+
     private int heapFileId;
     private File file;
     private TupleDesc tupleDesc;
-    private int numPages;
+    // hands out new page numbers and keeps the file pre-extended
+    private final PageAllocator allocator;
+    private final IoMode ioMode;
+    private final PageFormat pageFormat;
+    private final int pageSize;
+    // byte offset of page 0: FILE_HEADER_SIZE with a header, 0 for legacy files
+    private final int dataOffset;
+    // whether the header keeps the page count
+    private final boolean countInHeader;
+
+    // one long-lived channel per table; pages are read and written with
+    // positional I/O so no seek state is shared between callers
+    private FileChannel channel;
+    // which pages are known to be full; saves insertTuple a walk over the table
+    private final FreeSpaceMap freeSpace;
+    // MAPPED mode only; segment i covers pages [i * pagesPerSegment, (i + 1) * pagesPerSegment)
+    private ArrayList<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -26,15 +104,161 @@ public class HeapFile implements DbFile {
      *          file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, defaultIoMode());
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file that reads its
+     * pages using the given mode.
+     */
+    public HeapFile(File f, TupleDesc td, IoMode ioMode) {
+        this(f, td, ioMode, PageFormat.FIXED);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, whose pages are
+     * laid out in the given format.
+     */
+    public HeapFile(File f, TupleDesc td, PageFormat pageFormat) {
+        this(f, td, defaultIoMode(), pageFormat);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, whose pages are
+     * laid out in the given format and read using the given mode. If the
+     * file starts with a header (see {@link #create}), the page format and
+     * page size recorded there win over pageFormat and the BufferPool's
+     * page size.
+     */
+    public HeapFile(File f, TupleDesc td, IoMode ioMode, PageFormat pageFormat) {
         // some code goes here
         heapFileId = f.getAbsoluteFile().hashCode();
         file = f;
         tupleDesc = td;
-        int pgSize = BufferPool.getPageSize();
-        numPages = (int) file.length() / pgSize;
+        this.ioMode = ioMode;
+        int[] header = readFileHeader(f);
+        this.countInHeader = header != null && header[2] >= 0;
+        if (header != null) {
+            this.pageSize = header[0];
+            this.pageFormat = PageFormat.values()[header[1]];
+            this.dataOffset = FILE_HEADER_SIZE;
+        } else {
+            this.pageSize = BufferPool.getPageSize();
+            this.pageFormat = pageFormat;
+            this.dataOffset = 0;
+            if (pageFormat == PageFormat.COMPACT && pageSize > MAX_COMPACT_PAGE_SIZE) {
+                throw new IllegalArgumentException("COMPACT pages can't be larger than "
+                        + MAX_COMPACT_PAGE_SIZE + " bytes, not " + pageSize);
+            }
+        }
+        allocator = new PageAllocator(countInHeader ? header[2] : -1);
+        freeSpace = new FreeSpaceMap(new File(f.getPath() + ".fsm"), allocator.numPages.get());
 //        Debug.log("when creating heapfile, numpages is :" + numPages);
     }
 
+    /**
+     * Creates a new, empty heap file whose header records the given page
+     * size and format, and opens it. Unlike legacy files, such a file can be
+     * reopened with any of the constructors and keeps its settings.
+     *
+     * @param pageSize bytes per page, a power of two of at least 512, and no
+     *        more than MAX_COMPACT_PAGE_SIZE for COMPACT pages
+     * @throws IOException if f already holds data
+     */
+    public static HeapFile create(File f, TupleDesc td, int pageSize, PageFormat pageFormat) throws IOException {
+        if (pageSize < 512 || Integer.bitCount(pageSize) != 1) {
+            throw new IllegalArgumentException("page size must be a power of two >= 512, not " + pageSize);
+        }
+        if (pageFormat == PageFormat.COMPACT && pageSize > MAX_COMPACT_PAGE_SIZE) {
+            throw new IllegalArgumentException("COMPACT pages can't be larger than "
+                    + MAX_COMPACT_PAGE_SIZE + " bytes, not " + pageSize);
+        }
+        if (f.length() > 0) {
+            throw new IOException(f + " is not empty");
+        }
+        // left over from an earlier table in the same place
+        new File(f.getPath() + ".fsm").delete();
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        header.putInt(FILE_MAGIC).putInt(FILE_VERSION).putInt(pageSize).putInt(pageFormat.ordinal()).putInt(0);
+        header.clear();
+        try (FileChannel ch = new RandomAccessFile(f, "rw").getChannel()) {
+            writeFully(ch, header, 0);
+        }
+        return new HeapFile(f, td, pageFormat);
+    }
+
+    /**
+     * Returns {pageSize, format ordinal, page count} from the header of f,
+     * with a page count of -1 for a version 1 header, or null if f is a
+     * legacy file without one.
+     */
+    private static int[] readFileHeader(File f) {
+        if (f.length() < FILE_HEADER_SIZE) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(20);
+        try (FileChannel ch = new RandomAccessFile(f, "r").getChannel()) {
+            readFully(ch, header, 0);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        header.flip();
+        int magic = header.getInt();
+        int version = header.getInt();
+        int pageSize = header.getInt();
+        int format = header.getInt();
+        int pages = version >= 2 ? header.getInt() : -1;
+        // a legacy page 0 could start with these bytes by chance, so check
+        // that the rest of the header is plausible too
+        if (magic != FILE_MAGIC || version < 1 || version > FILE_VERSION || pages < -1 || pageSize < 512
+                || Integer.bitCount(pageSize) != 1 || format < 0 || format >= PageFormat.values().length) {
+            return null;
+        }
+        if (format == PageFormat.COMPACT.ordinal() && pageSize > MAX_COMPACT_PAGE_SIZE) {
+            throw new IllegalArgumentException(f + " has COMPACT pages of " + pageSize
+                    + " bytes, more than slot offsets can address");
+        }
+        return new int[]{pageSize, format, pages};
+    }
+
+    private static IoMode defaultIoMode() {
+        String mode = System.getProperty(IO_MODE_PROPERTY);
+        if (mode == null) {
+            return IoMode.CHANNEL;
+        }
+        return IoMode.valueOf(mode.trim().toUpperCase());
+    }
+
+    public IoMode getIoMode() {
+        return ioMode;
+    }
+
+    public PageFormat getPageFormat() {
+        return pageFormat;
+    }
+
+    /**
+     * Returns the size in bytes of the pages of this file.
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Returns the file offset of page pgNo.
+     */
+    private long pageOffset(int pgNo) {
+        return dataOffset + (long) pageSize * pgNo;
+    }
+
+    /**
+     * Returns a new, empty page pgNo for this file.
+     */
+    public HeapPage createEmptyPage(int pgNo) {
+        return new HeapPage(new HeapPageId(heapFileId, pgNo), tupleDesc, pageFormat, pageSize);
+    }
+
     /**
      * Returns the File backing this HeapFile on disk.
      * 
@@ -74,23 +298,42 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         int pgNo = pid.getPageNumber();
-//        if (pgNo == numPages) {
-//            Page newp = new HeapPage(new HeapPageId(heapFileId, pgNo), tupleDesc);
-////            Debug.log("numpages current " + numPages + " instantly updating");
-//            numPages++;
-//            return newp;
-//        }
         // some code goes here
-//        Debug.log("reading pgNo :" + pgNo);
         try {
-            DataInputStream in = new DataInputStream(new FileInputStream(file));
-            int pgSize = Database.getBufferPool().getPageSize();
-            byte[] data = new byte[pgSize];
-            in.skipBytes(pgSize * pgNo);
-            in.read(data, 0, pgSize);
-//            Debug.log("data[0] = " + data[0]);
-            in.close();
-            return new HeapPage(new HeapPageId(pid.getTableId(), pgNo), data);
+            HeapPageId hpid = new HeapPageId(pid.getTableId(), pgNo);
+            if (ioMode == IoMode.MAPPED) {
+                ByteBuffer mapped = mappedPage(pgNo, pageSize);
+                if (mapped != null) {
+                    return new HeapPage(hpid, tupleDesc, pageFormat, pageSize, mapped);
+                }
+            }
+            ByteBuffer data = ByteBuffer.allocate(pageSize);
+            readFully(data, pageOffset(pgNo));
+            data.clear();
+            return new HeapPage(hpid, tupleDesc, pageFormat, pageSize, data);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Reads page pid into frame, a buffer of getPageSize() bytes that
+     * belongs to a PageArena, and returns a page that decodes its tuples
+     * from there.
+     */
+    HeapPage readPageInto(PageId pid, ByteBuffer frame) {
+        try {
+            readFully(frame, pageOffset(pid.getPageNumber()));
+            // past the end of the file; the frame still holds an old page
+            while (frame.hasRemaining()) {
+                frame.put((byte) 0);
+            }
+            frame.clear();
+            HeapPage page = new HeapPage(new HeapPageId(pid.getTableId(), pid.getPageNumber()),
+                    tupleDesc, pageFormat, pageSize, frame);
+            page.setCacheTuples(false);
+            return page;
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -102,79 +345,447 @@ public class HeapFile implements DbFile {
         // some code goes here
         // not necessary for lab1
         Debug.log("write to page " + ((HeapPageId) page.getId()).toString());
-        RandomAccessFile rf = new RandomAccessFile(file.getAbsolutePath(), "rw");
-        int pgSize = BufferPool.getPageSize();
-        rf.seek(page.getId().getPageNumber() * pgSize);
-        byte[] data = page.getPageData();
-        rf.write(data, 0, pgSize);
-        rf.close();
+        ByteBuffer data = ByteBuffer.wrap(page.getPageData(), 0, pageSize);
+        allocator.written(page.getId().getPageNumber());
+        writeFully(data, pageOffset(page.getId().getPageNumber()));
+        if (page instanceof HeapPage) {
+            int pgNo = page.getId().getPageNumber();
+            freeSpace.setRoom(pgNo, ((HeapPage) page).getRoom());
+            freeSpace.persist(pgNo);
+        }
         Debug.log("write to page finished");
     }
 
+    /**
+     * Writes pages of this file, coalescing pages with adjacent page numbers
+     * into a single write.
+     *
+     * @return the number of writes issued
+     */
+    public int writePages(Collection<? extends Page> pages) throws IOException {
+        ArrayList<Page> sorted = new ArrayList<Page>(pages);
+        sorted.sort(Comparator.comparingInt(p -> p.getId().getPageNumber()));
+        int writes = 0;
+        for (int from = 0; from < sorted.size(); ) {
+            int first = sorted.get(from).getId().getPageNumber();
+            int to = from + 1;
+            while (to < sorted.size() && sorted.get(to).getId().getPageNumber() == first + (to - from)) {
+                to++;
+            }
+            ByteBuffer out = ByteBuffer.allocate((to - from) * pageSize);
+            for (Page p : sorted.subList(from, to)) {
+                out.put(p.getPageData(), 0, pageSize);
+                if (p instanceof HeapPage) {
+                    freeSpace.setRoom(p.getId().getPageNumber(), ((HeapPage) p).getRoom());
+                }
+            }
+            out.flip();
+            allocator.written(first + (to - from) - 1);
+            writeFully(out, pageOffset(first));
+            freeSpace.persist(first, first + (to - from));
+            writes++;
+            from = to;
+        }
+        return writes;
+    }
+
+    // see DbFile.java for javadocs
+    public void force() throws IOException {
+        try {
+            getChannel().force(true);
+        } catch (ClosedChannelException e) {
+            // closed under us by an interrupt; the writes are still the file's
+            getChannel().force(true);
+        }
+    }
+
+    /**
+     * Closes the channel backing this file. The channel is reopened lazily if
+     * the file is accessed again afterwards.
+     */
+    public void close() throws IOException {
+        // outside our monitor; the allocator takes its own lock first
+        allocator.trim();
+        synchronized (this) {
+            segments.clear();
+            freeSpace.close();
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    /**
+     * Returns a read-only view of page pgNo inside the mapped segment that
+     * holds it, or null if the page lies past the end of the file. A segment
+     * that was mapped before the file grew is remapped on demand.
+     */
+    private synchronized ByteBuffer mappedPage(int pgNo, int pgSize) throws IOException {
+        int pagesPerSegment = Math.max(1, MAP_SEGMENT_BYTES / pgSize);
+        int segNo = pgNo / pagesPerSegment;
+        long segStart = dataOffset + (long) segNo * pagesPerSegment * pgSize;
+        int pageOffset = (pgNo % pagesPerSegment) * pgSize;
+
+        while (segments.size() <= segNo) {
+            segments.add(null);
+        }
+        MappedByteBuffer seg = segments.get(segNo);
+        if (seg == null || seg.capacity() < pageOffset + pgSize) {
+            FileChannel ch = getChannel();
+            long len = Math.min((long) pagesPerSegment * pgSize, ch.size() - segStart);
+            if (len < pageOffset + pgSize) {
+                return null;
+            }
+            seg = ch.map(FileChannel.MapMode.READ_ONLY, segStart, len);
+            segments.set(segNo, seg);
+        }
+        ByteBuffer page = seg.duplicate();
+        page.position(pageOffset);
+        page.limit(pageOffset + pgSize);
+        return page.slice();
+    }
+
+    private synchronized FileChannel getChannel() throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            channel = new RandomAccessFile(file, "rw").getChannel();
+        }
+        return channel;
+    }
+
+    /**
+     * Fills buf from the given file offset. Bytes past the end of the file
+     * are left as zeroes, which decode as empty slots.
+     */
+    private void readFully(ByteBuffer buf, long offset) throws IOException {
+        try {
+            readFully(getChannel(), buf, offset);
+        } catch (ClosedChannelException e) {
+            // closed under us, e.g. by an interrupt in another reader; retry once
+            buf.clear();
+            readFully(getChannel(), buf, offset);
+        }
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer buf, long offset) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, offset + buf.position());
+            if (n < 0) {
+                break;
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buf, long offset) throws IOException {
+        try {
+            writeFully(getChannel(), buf, offset);
+        } catch (ClosedChannelException e) {
+            buf.rewind();
+            writeFully(getChannel(), buf, offset);
+        }
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf, long offset) throws IOException {
+        while (buf.hasRemaining()) {
+            ch.write(buf, offset + buf.position());
+        }
+    }
+
     /**
      * Returns the number of pages in this HeapFile.
      */
     public int numPages() {
         // some code goes here
-        int pgSize = BufferPool.getPageSize();
-        numPages = (int) file.length() / pgSize;
-        return numPages;
+        return allocator.numPages.get();
+    }
+
+    /**
+     * Re-reads the page count from the file header, or from the length of a
+     * file without one, e.g. after
+     * the file was extended behind this HeapFile's back or during recovery.
+     * The count never goes down: pages that have been allocated but not yet
+     * written are still counted.
+     *
+     * @return the new page count
+     */
+    public int syncNumPages() {
+        return allocator.sync();
+    }
+
+    /**
+     * PageAllocator hands out page numbers at the end of the file. The page
+     * count (what numPages() reports) can be smaller than the file itself:
+     * when a single new page is needed the file is extended by
+     * PREALLOCATE_PAGES zeroed pages at once, so that later inserts find
+     * their page already on disk. close() trims the unused tail again.
+     * <p>
+     * So that the preallocated pages don't count after a crash, or when the
+     * file is opened again before close(), the page count of everything
+     * written is kept in the file header, and updated before a write goes
+     * past it. A page counted but never written reads as an empty page.
+     * Files without a header, or with a version 1 header, fall back to the
+     * file length.
+     * <p>
+     * All changes to the counts happen under the allocator's monitor, so no
+     * page number is handed out twice and a zero-fill never overwrites a
+     * page that was reserved by someone else.
+     */
+    private class PageAllocator {
+        // pages handed out so far
+        final AtomicInteger numPages = new AtomicInteger();
+        // pages that exist on disk, or that a reserve() caller is about to write
+        private int filePages;
+        // the page count in the header
+        private int headerPages;
+
+        /**
+         * @param headerPages the page count in the file header, or -1 if
+         *   the header doesn't have one
+         */
+        PageAllocator(int headerPages) {
+            filePages = pagesOnDisk();
+            this.headerPages = headerPages;
+            numPages.set(countInHeader ? headerPages : filePages);
+        }
+
+        /**
+         * Hands out one new page, which reads as an empty page on disk.
+         */
+        synchronized int allocate() throws IOException {
+            int pgNo = numPages.getAndIncrement();
+            if (pgNo >= filePages) {
+                int end = (pgNo / PREALLOCATE_PAGES + 1) * PREALLOCATE_PAGES;
+                ByteBuffer zeros = ByteBuffer.allocate((end - filePages) * pageSize);
+                writeFully(zeros, pageOffset(filePages));
+                filePages = end;
+            }
+            return pgNo;
+        }
+
+        /**
+         * Hands out n consecutive new pages that the caller will write
+         * itself; nothing is written here.
+         *
+         * @return the first page number
+         */
+        synchronized int reserve(int n) {
+            int first = numPages.getAndAdd(n);
+            filePages = Math.max(filePages, first + n);
+            return first;
+        }
+
+        /**
+         * Notes that page pgNo is about to be written directly, possibly
+         * past the end, and counts it in the header first.
+         */
+        synchronized void written(int pgNo) throws IOException {
+            if (countInHeader && pgNo + 1 > headerPages) {
+                ByteBuffer count = ByteBuffer.allocate(4);
+                count.putInt(0, pgNo + 1);
+                writeFully(count, PAGE_COUNT_OFFSET);
+                headerPages = pgNo + 1;
+            }
+            filePages = Math.max(filePages, pgNo + 1);
+            numPages.accumulateAndGet(pgNo + 1, Math::max);
+        }
+
+        /**
+         * Counts the pages someone else wrote: up to the header's count, or
+         * without one, pages on disk past the ones this allocator wrote or
+         * preallocated itself, which it already knows about.
+         */
+        synchronized int sync() {
+            int onDisk = pagesOnDisk();
+            int pages = onDisk > filePages ? onDisk : 0;
+            filePages = Math.max(filePages, onDisk);
+            if (countInHeader) {
+                try {
+                    ByteBuffer count = ByteBuffer.allocate(4);
+                    readFully(count, PAGE_COUNT_OFFSET);
+                    headerPages = Math.max(headerPages, count.getInt(0));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                pages = headerPages;
+            }
+            numPages.accumulateAndGet(pages, Math::max);
+            return numPages.get();
+        }
+
+        private int pagesOnDisk() {
+            return (int) (Math.max(0, file.length() - dataOffset) / pageSize);
+        }
+
+        /** Gives the preallocated pages nobody asked for back to the file system. */
+        synchronized void trim() throws IOException {
+            if (filePages > numPages.get()) {
+                getChannel().truncate(pageOffset(numPages.get()));
+                filePages = numPages.get();
+            }
+        }
     }
 
     // see DbFile.java for javadocs
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
-        for (int pgNo = 0; pgNo < numPages(); pgNo++) {
+        // only visit pages the free space map doesn't know to be too full
+        int needed = HeapPage.getRoomNeeded(t, pageFormat);
+        for (int pgNo = freeSpace.nextPageWithRoom(0, numPages(), needed); pgNo >= 0;
+             pgNo = freeSpace.nextPageWithRoom(pgNo + 1, numPages(), needed)) {
             PageId pid = new HeapPageId(this.getId(), pgNo);
-            HeapPage hpage = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
-            if (!hpage.verifyTupleOnPage(t)) {
-                // if hpage full or not the right page
-                Database.getLockManager().unlockRead(tid, pid);
-            } else {
-                Database.getLockManager().acquire(tid, pid, Permissions.READ_WRITE);
-            }
+            // pinned until it is dirty, so it can't be evicted under us
+            HeapPage hpage = (HeapPage) Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY);
             try {
+                if (!hpage.verifyTupleOnPage(t)) {
+                    // if hpage full or not the right page
+                    freeSpace.setRoom(pgNo, hpage.getRoom());
+                    Database.getLockManager().unlockRead(tid, pid);
+                    continue;
+                }
+                Database.getLockManager().acquire(tid, pid, Permissions.READ_WRITE);
                 hpage.insertTuple(t);
                 hpage.markDirty(true, tid);
+                freeSpace.setRoom(pgNo, hpage.getRoom());
                 return new ArrayList<Page>() {{
                     add(hpage);
                 }};
             } catch (DbException e) {
-
+                // filled up by someone else in the meantime
+                freeSpace.setRoom(pgNo, hpage.getRoom());
+            } finally {
+                Database.getBufferPool().unpinPage(pid);
             }
         }
         Debug.log("pages are full; create a blank page");
-        int pgNo = numPages();
-        BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(getFile(), true));
-        byte[] emptyData = HeapPage.createEmptyPageData();
-        bw.write(emptyData);
-        bw.close();
+        int pgNo = allocator.allocate();
         HeapPageId newPid = new HeapPageId(heapFileId, pgNo);
-        numPages();
-        HeapPage hpage = (HeapPage) Database.getBufferPool().getPage(tid, newPid, Permissions.READ_WRITE);
+        HeapPage hpage = (HeapPage) Database.getBufferPool().pinPage(tid, newPid, Permissions.READ_WRITE);
         try {
             hpage.insertTuple(t);
             hpage.markDirty(true, tid);
+            freeSpace.setRoom(pgNo, hpage.getRoom());
             return new ArrayList<Page>() {{
                 add(hpage);
             }};
         } catch (DbException e) {
             Debug.log("new page insert fail");
             e.printStackTrace();
+        } finally {
+            Database.getBufferPool().unpinPage(newPid);
         }
         return null;
         // not necessary for lab1
     }
 
+    /**
+     * Appends the given tuples to the end of this file on behalf of tid,
+     * without going through the buffer pool. Tuples are packed into new pages
+     * in memory, and every BULK_APPEND_PAGES pages are written with a single
+     * sequential write, after each page has been logged as a whole-page
+     * update (before image: an empty page) and the log has been forced.
+     * <p>
+     * tid holds a write lock on every appended page until it completes. If
+     * it aborts, the BufferPool overwrites the appended pages with empty
+     * ones.
+     *
+     * @return the number of tuples appended
+     * @throws DbException if a tuple does not match this file's TupleDesc
+     * @see BufferPool#bulkAppended
+     */
+    public int bulkAppend(TransactionId tid, Iterator<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        int appended = 0;
+        // pages are packed before their page numbers are known, since a
+        // COMPACT page holds a variable number of tuples
+        ArrayList<HeapPage> packed = new ArrayList<HeapPage>();
+        HeapPage page = null;
+        while (tuples.hasNext()) {
+            Tuple t = tuples.next();
+            if (!t.getTupleDesc().equals(tupleDesc)) {
+                throw new DbException("tuple does not match the TupleDesc of table " + heapFileId);
+            }
+            if (page == null || !page.verifyTupleOnPage(t)) {
+                if (packed.size() == BULK_APPEND_PAGES) {
+                    appended += appendPages(tid, packed);
+                    packed.clear();
+                }
+                page = createEmptyPage(packed.size());
+                packed.add(page);
+            }
+            page.insertTuple(t);
+        }
+        if (!packed.isEmpty()) {
+            appended += appendPages(tid, packed);
+        }
+        return appended;
+    }
+
+    /**
+     * Gives the packed pages real page numbers at the end of the file, logs
+     * them and writes them in one go.
+     *
+     * @return the number of tuples on the pages
+     */
+    private int appendPages(TransactionId tid, List<HeapPage> packed)
+            throws DbException, IOException, TransactionAbortedException {
+        int firstPgNo = allocator.reserve(packed.size());
+        ArrayList<HeapPage> pages = new ArrayList<HeapPage>(packed.size());
+        int count = 0;
+        for (HeapPage p : packed) {
+            HeapPageId pid = new HeapPageId(heapFileId, firstPgNo + pages.size());
+            for (Iterator<Tuple> it = p.iterator(Collections.<Predicate>emptyList()); it.hasNext(); count++) {
+                Tuple t = it.next();
+                t.setRecordId(new RecordId(pid, t.getRecordId().getTupleNumber()));
+            }
+            pages.add(new HeapPage(pid, tupleDesc, pageFormat, pageSize, ByteBuffer.wrap(p.getPageData())));
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(pages.size() * pageSize);
+        ArrayList<PageId> pids = new ArrayList<PageId>(pages.size());
+        LogFile log = Database.getLogFile();
+        for (HeapPage p : pages) {
+            Database.getLockManager().acquire(tid, p.getId(), Permissions.READ_WRITE);
+            pids.add(p.getId());
+            log.logWrite(tid, createEmptyPage(p.getId().getPageNumber()), p);
+            out.put(p.getPageData());
+        }
+        // the pages are uncommitted, so their log records must be durable first
+        log.force();
+        Database.getBufferPool().bulkAppended(tid, pids);
+        out.flip();
+        allocator.written(firstPgNo + pages.size() - 1);
+        writeFully(out, pageOffset(firstPgNo));
+        for (HeapPage p : pages) {
+            freeSpace.setRoom(p.getId().getPageNumber(), p.getRoom());
+        }
+        freeSpace.persist(firstPgNo, firstPgNo + pages.size());
+        return count;
+    }
+
+    /**
+     * Brings the free space map up to date with page, which an aborted
+     * transaction's changes were just taken out of.
+     */
+    void pageReverted(HeapPage page) throws IOException {
+        int pgNo = page.getId().getPageNumber();
+        freeSpace.setRoom(pgNo, page.getRoom());
+        freeSpace.persist(pgNo);
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
         // some code goes here
         PageId pid = t.getRecordId().getPageId();
-        HeapPage hpage = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-        hpage.deleteTuple(t);
-        hpage.markDirty(true, tid);
+        HeapPage hpage = (HeapPage) Database.getBufferPool().pinPage(tid, pid, Permissions.READ_WRITE);
+        try {
+            hpage.deleteTuple(t);
+            hpage.markDirty(true, tid);
+        } finally {
+            Database.getBufferPool().unpinPage(pid);
+        }
+        freeSpace.setRoom(pid.getPageNumber(), hpage.getRoom());
         return new ArrayList<Page>() {{
             add(hpage);
         }};
@@ -184,11 +795,25 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
-        return new HeapFileIterator(tid);
+        return new HeapFileIterator(tid, Collections.<Predicate>emptyList());
 //        return null;
     }
 
+    /**
+     * Returns an iterator over the tuples of this file that satisfy all of
+     * the given predicates. Tuples that fail are skipped inside each page
+     * without being materialized.
+     *
+     * @see HeapPage#matches
+     */
+    public DbFileIterator iterator(TransactionId tid, List<Predicate> predicates) {
+        return new HeapFileIterator(tid, predicates);
+    }
+
     private class HeapFileIterator extends AbstractDbFileIterator implements DbFileIterator {
+        // page advances in a row before read-ahead kicks in
+        private static final int READ_AHEAD_TRIGGER = 2;
+
         private TransactionId tid;
 
         private int curPgNo = 0;
@@ -196,15 +821,45 @@ public class HeapFile implements DbFile {
         private HeapPage curPage;
         private HeapPageId curPageId;
         private Iterator<Tuple> curIt;
+        private int sequentialRun = 0;
+        private int readAheadUntil = 0; // pages below this were handed to read-ahead
+        private final List<Predicate> predicates;
+        // for tables larger than the pool, so the scan doesn't flush it
+        private BufferRing ring;
+        // with an off-heap pool, the page being read is pinned so that its
+        // arena frame isn't reused under us
+        private PageId pinned;
 
-        HeapFileIterator(TransactionId tid) {
+        HeapFileIterator(TransactionId tid, List<Predicate> predicates) {
             this.tid = tid;
+            this.predicates = predicates;
         }
 
         public void open() throws DbException, TransactionAbortedException {
+            sequentialRun = 0;
+            readAheadUntil = 0;
+            ring = Database.getBufferPool().getScanRing(numPages());
             curPageId = new HeapPageId(HeapFile.this.getId(), curPgNo);
-            curPage = (HeapPage) Database.getBufferPool().getPage(tid, curPageId, Permissions.READ_ONLY);
-            curIt = curPage.iterator();
+            curPage = fetch(curPageId);
+            curIt = curPage.iterator(predicates);
+        }
+
+        private HeapPage fetch(HeapPageId pid) throws DbException, TransactionAbortedException {
+            BufferPool pool = Database.getBufferPool();
+            if (!pool.isOffHeap()) {
+                return (HeapPage) pool.getPage(tid, pid, Permissions.READ_ONLY, ring);
+            }
+            HeapPage page = (HeapPage) pool.pinPage(tid, pid, Permissions.READ_ONLY, ring);
+            unpin();
+            pinned = pid;
+            return page;
+        }
+
+        private void unpin() {
+            if (pinned != null) {
+                Database.getBufferPool().unpinPage(pinned);
+                pinned = null;
+            }
         }
 
         public Tuple readNext() throws DbException, TransactionAbortedException {
@@ -217,16 +872,42 @@ public class HeapFile implements DbFile {
             } else {
                 Debug.log("curPgNo ++ ");
                 curPgNo++;
-                if (curPgNo >= numPages()) {
+                // the file may have been extended behind our back; check the
+                // disk once before ending the scan
+                if (curPgNo >= numPages() && curPgNo >= syncNumPages()) {
                     return null;
                 }
+                readAhead();
                 curPageId = new HeapPageId(HeapFile.this.getId(), curPgNo);
-                curPage = (HeapPage) Database.getBufferPool().getPage(tid, curPageId, Permissions.READ_ONLY);
-                curIt = curPage.iterator();
+                curPage = fetch(curPageId);
+                curIt = curPage.iterator(predicates);
                 return readNext();
             }
         }
 
+        /**
+         * Once the scan has moved forward a few pages in a row, keep the next
+         * getReadAheadPages() pages queued for background reads so decoding
+         * this page overlaps with reading the following ones.
+         */
+        private void readAhead() {
+            BufferPool pool = Database.getBufferPool();
+            int window = pool.getReadAheadPages();
+            if (window == 0 || ++sequentialRun < READ_AHEAD_TRIGGER) {
+                return;
+            }
+            int from = Math.max(readAheadUntil, curPgNo + 1);
+            int end = Math.min(numPages(), curPgNo + 1 + window);
+            if (from >= end) {
+                return;
+            }
+            ArrayList<PageId> pids = new ArrayList<PageId>(end - from);
+            for (int pgNo = from; pgNo < end; pgNo++) {
+                pids.add(new HeapPageId(HeapFile.this.getId(), pgNo));
+            }
+            readAheadUntil = from + pool.readAhead(pids);
+        }
+
         public void rewind() throws DbException, TransactionAbortedException {
             curPgNo = 0;
             open();
@@ -234,6 +915,7 @@ public class HeapFile implements DbFile {
         }
 
         public void close() {
+            unpin();
             curPgNo = 0;
             curPage = null;
             curPageId = null;
@@ -106,6 +106,8 @@ public class HeapFileEncoder {
 
     BufferedReader br = new BufferedReader(new FileReader(inFile));
     FileOutputStream os = new FileOutputStream(outFile);
+    // a free space map of whatever outFile held before would be stale
+    new File(outFile.getPath() + ".fsm").delete();
 
     // our numbers probably won't be much larger than 1024 digits
     char buf[] = new char[1024];
@@ -2,6 +2,8 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
@@ -15,11 +17,29 @@ public class HeapPage implements Page, Iterator<Tuple> {
     final HeapPageId pid;
     final TupleDesc td;
     final byte[] header;
+    // tuples[i] is decoded from data the first time slot i is read; a used
+    // slot with a null entry still lives only in the raw page bytes
     final Tuple[] tuples;
     final int numSlots;
-
+    final HeapFile.PageFormat format;
+    final int pageSize;
+    // the page image this page was built from, or null for a new page. It
+    // may be a frame of a PageArena, which is swapped for a heap copy by
+    // detach() before the frame is reused.
+    private volatile ByteBuffer data;
+    // false for pages in a PageArena: read-only tuples are decoded again on
+    // every access rather than kept on the heap
+    private boolean cacheTuples = true;
+    private final int tupleSize;
+    // byte offset of each field within a tuple
+    private final int[] fieldOffsets;
+    // COMPACT only: bytes taken by the live tuples, not counting the header
+    // and slot directory
+    private int usedBytes = 0;
+
+    // before image; null until the page is first modified, meaning "same as data"
     byte[] oldData;
-    private final Byte oldDataLock = new Byte((byte) 0);
+    private final Object oldDataLock = new Object();
 
     //    private LinkedList<Tuple> tupleList = new LinkedList<Tuple>();
     private boolean dirty = false;
@@ -37,48 +57,154 @@ public class HeapPage implements Page, Iterator<Tuple> {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * Pages of HeapFiles in the COMPACT format instead have
+     * <p>
+     *          floor((BufferPool.getPageSize()*8) / ((min tuple size + 2) * 8 + 1))
+     * <p>
+     * slots, where the min tuple size counts every string as empty. The
+     * header is followed by a directory of one 2-byte page offset per slot,
+     * and then by the compactly encoded tuples (see Type#serializeCompact),
+     * packed in slot order. A page fills up when either its slots or its
+     * bytes run out.
+     * <p>
+     * The page size is that of the table's HeapFile, which only differs from
+     * BufferPool.getPageSize() for files created with a header.
+     * <p>
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a HeapPage by decoding the page image that starts at the current
+     * position of data. The buffer is only read while the page is being
+     * constructed and its position is left untouched, so it may be a slice
+     * of a memory-mapped file.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this(id, Database.getCatalog().getTupleDesc(id.getTableId()), formatOf(id.getTableId()),
+                pageSizeOf(id.getTableId()), data);
+    }
+
+    /**
+     * Create a HeapPage of a table with the given TupleDesc and page format
+     * from the page image that starts at the current position of data.
+     */
+    HeapPage(HeapPageId id, TupleDesc td, HeapFile.PageFormat format, ByteBuffer data) throws IOException {
+        this(id, td, format, BufferPool.getPageSize(), data);
+    }
+
+    /**
+     * Create a HeapPage of pageSize bytes of a table with the given TupleDesc
+     * and page format from the page image that starts at the current
+     * position of data.
+     */
+    HeapPage(HeapPageId id, TupleDesc td, HeapFile.PageFormat format, int pageSize, ByteBuffer data) throws IOException {
         this.pid = id;
-        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.td = td;
+        this.format = format;
+        this.pageSize = pageSize;
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        this.tupleSize = td.getSize();
+        this.fieldOffsets = computeFieldOffsets(td);
+        this.data = data.slice();
 
-        // allocate and read the header slots of this page
+        // allocate and read the header slots of this page; tuples are only
+        // decoded when somebody reads them
         header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-
+        int minLength = format == HeapFile.PageFormat.COMPACT
+                ? pageSize : header.length + numSlots * tupleSize;
+        if (this.data.remaining() < minLength) {
+            throw new EOFException("page image is shorter than " + minLength + " bytes");
+        }
+        this.data.duplicate().get(header);
         tuples = new Tuple[numSlots];
-        try {
-            // allocate and read the actual records of this page
-            for (int i = 0; i < tuples.length; i++) {
-                Tuple tmp = readNextTuple(dis, i);
-                tuples[i] = tmp;
-//                if (tmp != null) {
-//                    tupleList.add(tmp);
-//                }
-
+        if (format == HeapFile.PageFormat.COMPACT) {
+            for (int i = 0; i < numSlots; i++) {
+                if (isSlotUsed(i)) {
+                    usedBytes += tupleLength(i);
+                }
             }
-        } catch (NoSuchElementException e) {
-            e.printStackTrace();
         }
-        dis.close();
-
-        setBeforeImage();
     }
 
     public HeapPage(HeapPageId pid, TupleDesc td) {
+        this(pid, td, HeapFile.PageFormat.FIXED);
+    }
+
+    /**
+     * Create an empty HeapPage of a table with the given TupleDesc and page
+     * format.
+     */
+    public HeapPage(HeapPageId pid, TupleDesc td, HeapFile.PageFormat format) {
+        this(pid, td, format, BufferPool.getPageSize());
+    }
+
+    /**
+     * Create an empty HeapPage of pageSize bytes of a table with the given
+     * TupleDesc and page format.
+     */
+    public HeapPage(HeapPageId pid, TupleDesc td, HeapFile.PageFormat format, int pageSize) {
         this.pid = pid;
         this.td = td;
+        this.format = format;
+        this.pageSize = pageSize;
         this.numSlots = getNumTuples();
+        this.tupleSize = td.getSize();
+        this.fieldOffsets = computeFieldOffsets(td);
+        this.data = null;
         header = new byte[getHeaderSize()];
         tuples = new Tuple[numSlots];
     }
 
+    /**
+     * Stops keeping decoded tuples on this page; they are decoded from the
+     * page image each time they are read.
+     */
+    void setCacheTuples(boolean cache) {
+        this.cacheTuples = cache;
+    }
+
+    /**
+     * Replaces the page image with a copy on the heap, so that the buffer it
+     * was read into can be reused.
+     */
+    void detach() {
+        ByteBuffer d = data;
+        if (d == null || !d.isDirect()) {
+            return;
+        }
+        ByteBuffer copy = ByteBuffer.allocate(d.capacity());
+        copy.put(d.duplicate());
+        copy.clear();
+        data = copy;
+    }
+
+    private static HeapFile.PageFormat formatOf(int tableId) {
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        return f instanceof HeapFile ? ((HeapFile) f).getPageFormat() : HeapFile.PageFormat.FIXED;
+    }
+
+    private static int pageSizeOf(int tableId) {
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        return f instanceof HeapFile ? ((HeapFile) f).getPageSize() : BufferPool.getPageSize();
+    }
+
+    private static int[] computeFieldOffsets(TupleDesc td) {
+        int[] offsets = new int[td.numFields()];
+        int off = 0;
+        for (int j = 0; j < offsets.length; j++) {
+            offsets[j] = off;
+            off += td.getFieldType(j).getLen();
+        }
+        return offsets;
+    }
+
     /**
      * Retrieve the number of tuples on this page.
      *
@@ -86,11 +212,48 @@ public class HeapPage implements Page, Iterator<Tuple> {
      */
     private int getNumTuples() {
         // some code goes here
-        return (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+        return getNumTuples(td, format, pageSize);
 //        return 0;
 
     }
 
+    /**
+     * Returns the number of tuple slots on a page of a table with the given
+     * TupleDesc.
+     */
+    public static int getNumTuples(TupleDesc td) {
+        return getNumTuples(td, HeapFile.PageFormat.FIXED);
+    }
+
+    /**
+     * Returns the number of tuple slots on a page of a table with the given
+     * TupleDesc and page format. For COMPACT pages this is an upper bound:
+     * pages of long strings run out of bytes first.
+     */
+    public static int getNumTuples(TupleDesc td, HeapFile.PageFormat format) {
+        return getNumTuples(td, format, BufferPool.getPageSize());
+    }
+
+    /**
+     * Returns the number of tuple slots on a page of pageSize bytes.
+     *
+     * @see #getNumTuples(TupleDesc, HeapFile.PageFormat)
+     */
+    public static int getNumTuples(TupleDesc td, HeapFile.PageFormat format, int pageSize) {
+        if (format == HeapFile.PageFormat.COMPACT) {
+            return (pageSize * 8) / ((getMinCompactSize(td) + 2) * 8 + 1);
+        }
+        return (pageSize * 8) / (td.getSize() * 8 + 1);
+    }
+
+    private static int getMinCompactSize(TupleDesc td) {
+        int size = 0;
+        for (int j = 0; j < td.numFields(); j++) {
+            size += td.getFieldType(j).getMinCompactLen();
+        }
+        return size;
+    }
+
     /**
      * Computes the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
      *
@@ -117,7 +280,11 @@ public class HeapPage implements Page, Iterator<Tuple> {
             synchronized (oldDataLock) {
                 oldDataRef = oldData;
             }
-            return new HeapPage(pid, oldDataRef);
+            if (oldDataRef == null) {
+                // never modified since it was read or last committed
+                oldDataRef = getPageData();
+            }
+            return new HeapPage(pid, td, format, pageSize, ByteBuffer.wrap(oldDataRef));
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -132,6 +299,18 @@ public class HeapPage implements Page, Iterator<Tuple> {
         }
     }
 
+    /**
+     * Takes the before image just ahead of the first change to this page, so
+     * that pages that are only read never serialize one.
+     */
+    private void snapshotBeforeImage() {
+        synchronized (oldDataLock) {
+            if (oldData == null) {
+                oldData = getPageData();
+            }
+        }
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -142,21 +321,30 @@ public class HeapPage implements Page, Iterator<Tuple> {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Returns the tuple in slot i, decoding it from the page bytes on first
+     * use, or null if the slot is empty.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
+    public Tuple getTuple(int i) {
+        if (!isSlotUsed(i)) {
             return null;
         }
+        Tuple t = tuples[i];
+        if (t == null) {
+            t = decodeTuple(i);
+            if (cacheTuples) {
+                tuples[i] = t;
+            }
+        }
+        return t;
+    }
+
+    /**
+     * Suck up a tuple from the page bytes.
+     */
+    private Tuple decodeTuple(int slotId) throws NoSuchElementException {
+        ByteBuffer buf = data.duplicate();
+        buf.position(slotOffset(slotId));
+        boolean compact = format == HeapFile.PageFormat.COMPACT;
 
         // read fields in the tuple
         Tuple t = new Tuple(td);
@@ -164,7 +352,8 @@ public class HeapPage implements Page, Iterator<Tuple> {
         t.setRecordId(rid);
         try {
             for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
+                Type type = td.getFieldType(j);
+                Field f = compact ? type.parseCompact(buf) : type.parse(buf);
                 t.setField(j, f);
             }
         } catch (java.text.ParseException e) {
@@ -175,6 +364,82 @@ public class HeapPage implements Page, Iterator<Tuple> {
         return t;
     }
 
+    /**
+     * Returns the offset of the raw bytes of slot slotId in data.
+     */
+    private int slotOffset(int slotId) {
+        if (format == HeapFile.PageFormat.COMPACT) {
+            return data.getShort(header.length + 2 * slotId) & 0xffff;
+        }
+        return header.length + slotId * tupleSize;
+    }
+
+    /**
+     * Returns the offset of the raw bytes of field j of slot slotId in data.
+     */
+    private int fieldOffset(int slotId, int j) {
+        if (format != HeapFile.PageFormat.COMPACT) {
+            return slotOffset(slotId) + fieldOffsets[j];
+        }
+        ByteBuffer buf = data.duplicate();
+        buf.position(slotOffset(slotId));
+        for (int k = 0; k < j; k++) {
+            td.getFieldType(k).skipCompact(buf);
+        }
+        return buf.position();
+    }
+
+    /**
+     * Returns how many bytes the tuple in slot i takes on the page.
+     */
+    private int tupleLength(int i) {
+        if (format != HeapFile.PageFormat.COMPACT) {
+            return tupleSize;
+        }
+        if (tuples[i] != null) {
+            return compactLength(tuples[i]);
+        }
+        ByteBuffer buf = data.duplicate();
+        buf.position(slotOffset(i));
+        int len = 0;
+        for (int j = 0; j < td.numFields(); j++) {
+            len += td.getFieldType(j).skipCompact(buf);
+        }
+        return len;
+    }
+
+    private int compactLength(Tuple t) {
+        return getRoomNeeded(t, HeapFile.PageFormat.COMPACT);
+    }
+
+    /**
+     * Returns the number of bytes left for tuple data on a COMPACT page.
+     */
+    private int getFreeBytes() {
+        return pageSize - header.length - 2 * numSlots - usedBytes;
+    }
+
+    /**
+     * Returns true if the tuple in slot i satisfies every predicate. Integer
+     * fields of tuples that have not been decoded yet are compared straight
+     * from the page bytes, so rejected tuples are never materialized.
+     */
+    public boolean matches(int i, List<Predicate> predicates) {
+        for (Predicate p : predicates) {
+            int field = p.getField();
+            if (tuples[i] == null && td.getFieldType(field) == Type.INT_TYPE
+                    && p.getOperand() instanceof IntField) {
+                int value = data.getInt(fieldOffset(i, field));
+                if (!IntField.compare(value, p.getOp(), ((IntField) p.getOperand()).getValue())) {
+                    return false;
+                }
+            } else if (!p.filter(getTuple(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -187,64 +452,75 @@ public class HeapPage implements Page, Iterator<Tuple> {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
+        if (format == HeapFile.PageFormat.COMPACT) {
+            return getCompactPageData();
+        }
+        byte[] out = new byte[pageSize];
 
         // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
+        System.arraycopy(header, 0, out, 0, header.length);
 
-        // create the tuples
+        // create the tuples; empty slots and the padding stay zero
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(tupleSize);
+        DataOutputStream dos = new DataOutputStream(baos);
         for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
             if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+                continue;
+            }
+            int off = slotOffset(i);
 
-                }
+            // never decoded: copy the original bytes
+            if (tuples[i] == null) {
+                ByteBuffer src = data.duplicate();
+                src.position(off);
+                src.get(out, off, tupleSize);
                 continue;
             }
 
-            // non-empty slot
+            // decoded or inserted slot
+            baos.reset();
             for (int j=0; j<td.numFields(); j++) {
                 Field f = tuples[i].getField(j);
                 try {
                     f.serialize(dos);
-
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
             }
+            System.arraycopy(baos.toByteArray(), 0, out, off, tupleSize);
         }
 
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        return out;
+    }
 
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Serializes a COMPACT page: live tuples are written back to back in
+     * slot order, which also squeezes out the holes left by deletes.
+     */
+    private byte[] getCompactPageData() {
+        ByteBuffer out = ByteBuffer.allocate(pageSize);
+        out.put(header);
+        int pos = header.length + 2 * numSlots;
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                continue;
+            }
+            out.putShort(header.length + 2 * i, (short) pos);
+            out.position(pos);
+            if (tuples[i] == null) {
+                // never decoded: copy the original bytes
+                ByteBuffer src = data.duplicate();
+                src.position(slotOffset(i));
+                src.limit(src.position() + tupleLength(i));
+                out.put(src);
+            } else {
+                for (int j = 0; j < td.numFields(); j++) {
+                    td.getFieldType(j).serializeCompact(tuples[i].getField(j), out);
+                }
+            }
+            pos = out.position();
         }
-
-        return baos.toByteArray();
+        return out.array();
     }
 
     /**
@@ -279,7 +555,12 @@ public class HeapPage implements Page, Iterator<Tuple> {
 //            Debug.log("!isSlotUsed(tupleNo) = " + (!isSlotUsed(tupleNo)));
             throw new DbException("");
         }
+        snapshotBeforeImage();
+        if (format == HeapFile.PageFormat.COMPACT) {
+            usedBytes -= tupleLength(tupleNo);
+        }
         markSlotUsed(tupleNo, false);
+        tuples[tupleNo] = null;
 //        tupleList.remove(t);
     }
 
@@ -289,7 +570,35 @@ public class HeapPage implements Page, Iterator<Tuple> {
         if (!t.getTupleDesc().equals(td) || getNumEmptySlots() == 0) {
             return false;
         }
-        return true;
+        return format != HeapFile.PageFormat.COMPACT || compactLength(t) <= getFreeBytes();
+    }
+
+    /**
+     * Returns how much room is left on this page: 0 without an empty slot,
+     * else the free bytes on a COMPACT page and the tuple size on a FIXED
+     * one. A tuple fits if getRoomNeeded() is no more than this.
+     */
+    public int getRoom() {
+        if (getNumEmptySlots() == 0) {
+            return 0;
+        }
+        return format == HeapFile.PageFormat.COMPACT ? getFreeBytes() : tupleSize;
+    }
+
+    /**
+     * Returns how much room t takes on a page of the given format; see
+     * getRoom().
+     */
+    public static int getRoomNeeded(Tuple t, HeapFile.PageFormat format) {
+        TupleDesc td = t.getTupleDesc();
+        if (format != HeapFile.PageFormat.COMPACT) {
+            return td.getSize();
+        }
+        int len = 0;
+        for (int j = 0; j < td.numFields(); j++) {
+            len += td.getFieldType(j).getCompactLen(t.getField(j));
+        }
+        return len;
     }
 
     /**
@@ -303,15 +612,19 @@ public class HeapPage implements Page, Iterator<Tuple> {
     public void insertTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
-        if (!t.getTupleDesc().equals(td) || getNumEmptySlots() == 0) {
+        if (!verifyTupleOnPage(t)) {
             throw new DbException("");
         }
 //        Debug.log("header[0] is now " + this.header[0] + " i is " + 0 + " isSlotUsed(0) :" + isSlotUsed(0));
+        snapshotBeforeImage();
         for (int i = 0; i < numSlots; i++) {
             if (!isSlotUsed(i)) {
                 t.setRecordId(new RecordId(pid, i));
                 markSlotUsed(i, true);
                 tuples[i] = t;
+                if (format == HeapFile.PageFormat.COMPACT) {
+                    usedBytes += compactLength(t);
+                }
 //                tupleList.add(t);
 //                Debug.log("header[0] is now " + header[0] + " i is " + i + " isSlotUsed(0) :" + isSlotUsed(i));
                 return;
@@ -399,6 +712,40 @@ public class HeapPage implements Page, Iterator<Tuple> {
         return this;
     }
 
+    /**
+     * @return an iterator over the tuples on this page that satisfy all of
+     * the given predicates. Unlike {@link #iterator()} it keeps its own
+     * position, so several may be open on the same page at once.
+     * @see #matches
+     */
+    public Iterator<Tuple> iterator(List<Predicate> predicates) {
+        return new Iterator<Tuple>() {
+            private int slot = advance(0);
+
+            private int advance(int from) {
+                for (int i = from; i < numSlots; i++) {
+                    if (isSlotUsed(i) && matches(i, predicates)) {
+                        return i;
+                    }
+                }
+                return numSlots;
+            }
+
+            public boolean hasNext() {
+                return slot < numSlots;
+            }
+
+            public Tuple next() {
+                if (slot >= numSlots) {
+                    throw new NoSuchElementException();
+                }
+                Tuple t = getTuple(slot);
+                slot = advance(slot + 1);
+                return t;
+            }
+        };
+    }
+
 
     private int cur_i = -1;
 
@@ -427,7 +774,7 @@ public class HeapPage implements Page, Iterator<Tuple> {
             if (isSlotUsed(i)) {
 //                Debug.log("succefully read slot " + i);
                 cur_i = i;
-                return tuples[i];
+                return getTuple(i);
             }
             i++;
         }
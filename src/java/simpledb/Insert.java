@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.NoSuchElementException;
 
 import static simpledb.Type.INT_TYPE;
@@ -12,6 +13,8 @@ import static simpledb.Type.INT_TYPE;
 public class Insert extends Operator {
 
     private static final long serialVersionUID = 1L;
+    // tuples are handed to HeapFile.bulkAppend this many pages at a time
+    private static final int BULK_BATCH_PAGES = 64;
     private OpIterator child;
     private int tableId;
     private TupleDesc tupleDesc;
@@ -92,14 +95,21 @@ public class Insert extends Operator {
             return null;
         }
         int acc = 0;
-        while (child.hasNext()) {
-            Tuple t = child.next();
-            try {
-                Database.getBufferPool().insertTuple(tid, tableId, t);
-                acc++;
-            } catch (IOException e) {
-                e.printStackTrace();
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
+        try {
+            if (dbFile instanceof HeapFile) {
+                acc = bulkInsert((HeapFile) dbFile);
+            } else {
+                while (child.hasNext()) {
+                    Database.getBufferPool().insertTuple(tid, tableId, child.next());
+                    acc++;
+                }
             }
+        } catch (IOException e) {
+            // the rows read so far may be in the table; the caller must abort
+            DbException failure = new DbException("insert into table " + tableId + " failed: " + e.getMessage());
+            failure.initCause(e);
+            throw failure;
         }
         Tuple res = new Tuple(new TupleDesc(new Type[]{INT_TYPE}));
         res.setField(0, new IntField(acc));
@@ -109,6 +119,36 @@ public class Insert extends Operator {
 //        return null;
     }
 
+    /**
+     * Reads the child in batches of BULK_BATCH_PAGES pages' worth of tuples
+     * and hands each full batch to HeapFile.bulkAppend. Whatever is left over
+     * (or a whole child smaller than a page) goes through
+     * BufferPool.insertTuple, so small inserts still fill existing pages.
+     */
+    private int bulkInsert(HeapFile hf)
+            throws DbException, IOException, TransactionAbortedException {
+        int perPage = HeapPage.getNumTuples(hf.getTupleDesc(), hf.getPageFormat(), hf.getPageSize());
+        int batchSize = BULK_BATCH_PAGES * perPage;
+        ArrayList<Tuple> batch = new ArrayList<Tuple>();
+        int acc = 0;
+        while (child.hasNext()) {
+            batch.add(child.next());
+            if (batch.size() == batchSize) {
+                acc += hf.bulkAppend(tid, batch.iterator());
+                batch.clear();
+            }
+        }
+        if (batch.size() >= perPage) {
+            acc += hf.bulkAppend(tid, batch.iterator());
+        } else {
+            for (Tuple t : batch) {
+                Database.getBufferPool().insertTuple(tid, tableId, t);
+                acc++;
+            }
+        }
+        return acc;
+    }
+
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
@@ -1,92 +1,160 @@
 package simpledb;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/**
+ * LockManager keeps a shared or exclusive lock per page for each
+ * transaction, held until the transaction completes. Locks belong to
+ * transactions, not threads, so any thread may release them.
+ * <p>
+ * Each page has an entry in the lock table with the transactions holding
+ * it and a FIFO queue of the requests waiting for it. A request is granted
+ * at once if it is compatible with the holders and nothing is queued ahead
+ * of it; otherwise it queues, and is granted as soon as the requests ahead
+ * of it have been and it is compatible. A READ holder asking for WRITE is
+ * an upgrade, and queues ahead of requests for new locks, since those would
+ * otherwise wait for it while it waits for them.
+ * <p>
+ * A transaction that has to wait is entered in a wait-for graph, with an
+ * edge to each transaction holding the page in a conflicting mode and each
+ * conflicting one queued ahead of it. If that closes a cycle, the
+ * transaction of the cycle chosen by the VictimPolicy is woken up and gets
+ * a TransactionAbortedException, and must abort to release its locks.
+ * Edges are recomputed whenever the holders or queue of a page change.
+ * <p>
+ * Each entry has a latch of its own for its holders and queue, so
+ * requests for different pages don't contend. The wait-for graph has
+ * another, which is only taken, inside a page's latch, when the page has
+ * requests waiting. Waiting requests park their thread and are unparked
+ * when granted or chosen as a victim, so nobody needs a page's latch to
+ * wake them.
+ */
 public class LockManager {
     public enum PageLockType {
         READ,
         WRITE
     }
 
+    /** Which transaction of a deadlock gets aborted. */
+    public enum VictimPolicy {
+        /** the one that began last, which has probably done the least work */
+        YOUNGEST,
+        /** the one holding the fewest locks, or the youngest of those */
+        FEWEST_LOCKS
+    }
+
+    /** A queued lock request. */
+    static class Waiter {
+        final TransactionId tid;
+        final PageLock page;
+        final PageLockType mode;
+        // holds a READ lock and waits to make it WRITE
+        final boolean upgrade;
+        // unparked when granted or chosen as a victim
+        final Thread thread;
+        // set under page's latch, once w is out of the wait-for graph
+        volatile boolean granted;
+        // set under the graph's latch
+        volatile boolean victim;
+        // when the deadlock it was chosen for was found
+        long victimSince;
+
+        Waiter(TransactionId tid, PageLock page, PageLockType mode, boolean upgrade) {
+            this.tid = tid;
+            this.page = page;
+            this.mode = mode;
+            this.upgrade = upgrade;
+            this.thread = Thread.currentThread();
+        }
+    }
+
+    /** The lock table entry of a page. */
     public static class PageLock {
         public PageId pid;
-        //        public TransactionId tid;
-        //        public ReentrantLock mutex; // for upgrading rwLock.readGuard to writeGuard
+        final LockManager manager;
+        // protects the holders and the queue
+        final ReentrantLock latch = new ReentrantLock();
+        // holders; only changed under latch
         public ConcurrentHashMap<TransactionId, PageLockType> txLockMap = new ConcurrentHashMap<>();
-        public ReentrantReadWriteLock rwl = new ReentrantReadWriteLock();
-//        public HashSet<>
-
-        public void RLock(TransactionId tid) {
-            PageLockType holdLock = txLockMap.getOrDefault(tid, null);
-            if (holdLock == null) {
-                rwl.readLock().lock();
-                txLockMap.put(tid, PageLockType.READ);
-//                Debug.log("setting tid " + tid + " type " + PageLockType.READ);
-//                Debug.log("readcount " + rwl.getReadLockCount() + " write count " + rwl.isWriteLocked());
-            } else if (holdLock == PageLockType.READ) {
-                // pass
-            } else {
-                // pass
-            }
-        }
-
-        public void WLock(TransactionId tid) {
-            PageLockType holdLock = txLockMap.getOrDefault(tid, null);
-            if (holdLock == null) {
-                rwl.writeLock().lock();
-                txLockMap.put(tid, PageLockType.WRITE);
-            } else if (holdLock == PageLockType.READ) {
-                Debug.log("code reached 1");
-                while (!(rwl.getReadLockCount() == 1 && !rwl.isWriteLocked()))
-//                synchronized (this){
-                {
-                    try {
-                        Debug.log("readcount " + rwl.getReadLockCount() + " write count " + rwl.isWriteLocked());
-                        Thread.sleep(50);
-                    } catch (InterruptedException e) {
-                    }
-                }
-                Debug.log("code reached 2");
-                rwl = new ReentrantReadWriteLock();
-                rwl.writeLock().lock();
-                Debug.log("code reached 3");
-                txLockMap.put(tid, PageLockType.WRITE);
-//                }
-            } else {
-                // pass
-            }
+        // requests waiting, upgrades first and then in the order they came;
+        // protected by latch
+        final ArrayList<Waiter> queue = new ArrayList<>();
+        // queue.size(), for a look without the latch
+        volatile int waiting;
+
+        public void RLock(TransactionId tid) throws TransactionAbortedException {
+            manager.lock(this, tid, PageLockType.READ);
+        }
+
+        public void WLock(TransactionId tid) throws TransactionAbortedException {
+            manager.lock(this, tid, PageLockType.WRITE);
         }
 
         public void Unlock(TransactionId tid) {
-            PageLockType holdLock = txLockMap.getOrDefault(tid, null);
-            if (holdLock == null) {
-                return;
-            } else if (holdLock == PageLockType.READ) {
-                rwl.readLock().unlock();
-            } else {
-                rwl.writeLock().unlock();
-            }
-            txLockMap.remove(tid);
+            manager.unlock(this, tid, false);
         }
 
         public void UnlockRead(TransactionId tid) {
-            PageLockType holdLock = txLockMap.getOrDefault(tid, null);
-            if (holdLock == PageLockType.READ) {
-                rwl.readLock().unlock();
-                txLockMap.remove(tid);
+            manager.unlock(this, tid, true);
+        }
+
+        /** Whether tid could hold mode alongside the other holders. */
+        boolean compatible(TransactionId tid, PageLockType mode) {
+            for (Map.Entry<TransactionId, PageLockType> h : txLockMap.entrySet()) {
+                if (!h.getKey().equals(tid) && (mode == PageLockType.WRITE || h.getValue() == PageLockType.WRITE)) {
+                    return false;
+                }
             }
+            return true;
+        }
+
+        /** Whether a new request must queue behind ones already waiting. */
+        boolean mustQueue(boolean upgrade) {
+            return !queue.isEmpty() && (!upgrade || queue.get(0).upgrade);
         }
 
+        void enqueue(Waiter w) {
+            int at = queue.size();
+            if (w.upgrade) {
+                at = 0;
+                while (at < queue.size() && queue.get(at).upgrade) {
+                    at++;
+                }
+            }
+            queue.add(at, w);
+            waiting = queue.size();
+        }
 
-//        public PageLockType getHoldLock(TransactionId tid) {
-//            return txLockMap.getOrDefault(tid, null);
-//        }
+        void dequeue(Waiter w) {
+            queue.remove(w);
+            waiting = queue.size();
+        }
 
-        PageLock(PageId pid) {
+        /**
+         * Makes the queued requests holders in order, up to the first that
+         * must still wait, and returns them; the caller marks them granted.
+         */
+        List<Waiter> grantWaiters() {
+            List<Waiter> granted = new ArrayList<>();
+            while (!queue.isEmpty() && compatible(queue.get(0).tid, queue.get(0).mode)) {
+                Waiter w = queue.remove(0);
+                txLockMap.put(w.tid, w.mode);
+                granted.add(w);
+            }
+            waiting = queue.size();
+            return granted;
+        }
+
+        PageLock(LockManager manager, PageId pid) {
+            this.manager = manager;
             this.pid = pid;
         }
     }
@@ -94,6 +162,17 @@ public class LockManager {
     public ConcurrentHashMap<PageId, PageLock> pageLockMap = new ConcurrentHashMap<>();
     public ConcurrentHashMap<TransactionId, HashSet<PageId>> txRelatedPages = new ConcurrentHashMap<>(); // tx modified pages
 
+    // protects waitsFor and waiters; taken inside a PageLock's latch, never
+    // the other way round
+    private final ReentrantLock graphLatch = new ReentrantLock();
+    private final WaitForGraph waitsFor = new WaitForGraph();
+    private final HashMap<TransactionId, Waiter> waiters = new HashMap<>();
+    private volatile VictimPolicy victimPolicy = VictimPolicy.YOUNGEST;
+    private final LongAdder victims = new LongAdder();
+    private final LongAdder detectionNanos = new LongAdder();
+    private final LongAdder searches = new LongAdder();
+    private final LongAdder searchNanos = new LongAdder();
+
     public void ReadPage() {
 
     }
@@ -102,17 +181,9 @@ public class LockManager {
 
     }
 
-    public void acquire(TransactionId tid, PageId pid, Permissions perm) {
+    public void acquire(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException {
 //        Debug.log("acquire tid:" + tid + " pid:" + pid + " perm:" + perm);
-        PageLock pageLock = null;
-        if (!pageLockMap.containsKey(pid)) {
-            pageLock = new PageLock(pid);
-            pageLockMap.put(pid, pageLock);
-        } else {
-            // is there any chance that someone remove the pageLock just before get.
-            // in that case, try acquire another time
-            pageLock = pageLockMap.get(pid);
-        }
+        PageLock pageLock = pageLockMap.computeIfAbsent(pid, p -> new PageLock(this, p));
         if (perm == Permissions.READ_WRITE) {
             pageLock.WLock(tid);
         } else {
@@ -157,6 +228,254 @@ public class LockManager {
         }
     }
 
+    /**
+     * Gets tid a lock on page in mode, queueing for it if it can't be
+     * granted yet. Holding WRITE covers READ.
+     *
+     * @throws TransactionAbortedException if tid was chosen as the victim
+     *         of a deadlock while it waited
+     */
+    void lock(PageLock page, TransactionId tid, PageLockType mode) throws TransactionAbortedException {
+        // only tid changes its own entry, so this needs no latch
+        PageLockType held = page.txLockMap.get(tid);
+        if (held == PageLockType.WRITE || held == mode) {
+            return;
+        }
+        boolean upgrade = held != null;
+        Waiter w;
+        page.latch.lock();
+        try {
+            if (page.compatible(tid, mode) && !page.mustQueue(upgrade)) {
+                page.txLockMap.put(tid, mode);
+                changed(page);
+                return;
+            }
+            w = new Waiter(tid, page, mode, upgrade);
+            page.enqueue(w);
+            graphLatch.lock();
+            try {
+                waiters.put(tid, w);
+                setBlockers(w);
+                search(tid, System.nanoTime());
+            } finally {
+                graphLatch.unlock();
+            }
+        } finally {
+            page.latch.unlock();
+        }
+        block(w);
+    }
+
+    /** Releases tid's lock on page, or only a READ lock if readOnly. */
+    void unlock(PageLock page, TransactionId tid, boolean readOnly) {
+        page.latch.lock();
+        try {
+            PageLockType held = page.txLockMap.get(tid);
+            if (held == null || (readOnly && held != PageLockType.READ)) {
+                return;
+            }
+            page.txLockMap.remove(tid);
+            changed(page);
+        } finally {
+            page.latch.unlock();
+        }
+    }
+
+    /**
+     * Waits, without any latch, until w is granted. If w turns out to be
+     * the victim of a deadlock, now or while it waits, it gives up and
+     * leaves the queue.
+     *
+     * @throws TransactionAbortedException if w was chosen as a victim
+     */
+    private void block(Waiter w) throws TransactionAbortedException {
+        boolean interrupted = false;
+        while (!w.granted && !w.victim) {
+            LockSupport.park(this);
+            interrupted |= Thread.interrupted();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        PageLock page = w.page;
+        page.latch.lock();
+        try {
+            if (w.granted) {
+                // granted, even if chosen too late: w isn't waiting any
+                // more, so the cycle is gone
+                return;
+            }
+            page.dequeue(w);
+            graphLatch.lock();
+            try {
+                waiters.remove(w.tid, w);
+                waitsFor.remove(w.tid);
+            } finally {
+                graphLatch.unlock();
+            }
+            // the requests behind w may be grantable now
+            changed(page);
+        } finally {
+            page.latch.unlock();
+        }
+        victims.increment();
+        detectionNanos.add(System.nanoTime() - w.victimSince);
+        throw new TransactionAbortedException();
+    }
+
+    /**
+     * Grants what can be granted on page after its holders or queue
+     * changed, and recomputes the edges of the requests still waiting,
+     * looking for cycles through them. Called with page's latch held; the
+     * graph's is only taken if some request was or is still waiting.
+     */
+    private void changed(PageLock page) {
+        List<Waiter> granted = page.grantWaiters();
+        if (granted.isEmpty() && page.queue.isEmpty()) {
+            return;
+        }
+        graphLatch.lock();
+        try {
+            for (Waiter w : granted) {
+                waiters.remove(w.tid, w);
+                waitsFor.remove(w.tid);
+                w.granted = true;
+            }
+            long now = System.nanoTime();
+            for (Waiter w : page.queue) {
+                if (!w.victim) {
+                    setBlockers(w);
+                    search(w.tid, now);
+                }
+            }
+        } finally {
+            graphLatch.unlock();
+        }
+        for (Waiter w : granted) {
+            LockSupport.unpark(w.thread);
+        }
+    }
+
+    /**
+     * Sets the edges of w's transaction: the transactions holding the page
+     * in a conflicting mode, and the ones queued ahead of it that want a
+     * conflicting mode. Called with both the page's latch and the graph's.
+     */
+    private void setBlockers(Waiter w) {
+        HashSet<TransactionId> blockers = new HashSet<>();
+        for (Map.Entry<TransactionId, PageLockType> h : w.page.txLockMap.entrySet()) {
+            if (!h.getKey().equals(w.tid) && (w.mode == PageLockType.WRITE || h.getValue() == PageLockType.WRITE)) {
+                blockers.add(h.getKey());
+            }
+        }
+        for (Waiter ahead : w.page.queue) {
+            if (ahead == w) {
+                break;
+            }
+            if (w.mode == PageLockType.WRITE || ahead.mode == PageLockType.WRITE) {
+                blockers.add(ahead.tid);
+            }
+        }
+        waitsFor.setEdges(w.tid, blockers);
+    }
+
+    /**
+     * Looks for cycles through tid, whose edges changed at time start, and
+     * for each one marks a victim and wakes it up. tid can be on more than
+     * one cycle, and breaking one leaves the others.
+     */
+    private void search(TransactionId tid, long start) {
+        for (;;) {
+            long t = System.nanoTime();
+            List<TransactionId> cycle = waitsFor.cycleThrough(tid);
+            searches.increment();
+            searchNanos.add(System.nanoTime() - t);
+            if (cycle == null) {
+                return;
+            }
+            TransactionId victim = chooseVictim(cycle);
+            Debug.log("DEADLOCK OF " + cycle.size() + " TRANSACTIONS, VICTIM " + victim.getId());
+            Waiter v = waiters.get(victim);
+            v.victimSince = start;
+            v.victim = true;
+            // so that the same cycle isn't found again before it gives up
+            waitsFor.remove(victim);
+            LockSupport.unpark(v.thread);
+            if (victim.equals(tid)) {
+                return;
+            }
+        }
+    }
+
+    private TransactionId chooseVictim(List<TransactionId> cycle) {
+        TransactionId victim = null;
+        for (TransactionId t : cycle) {
+            if (victim == null) {
+                victim = t;
+                continue;
+            }
+            if (victimPolicy == VictimPolicy.FEWEST_LOCKS) {
+                int locks = lockCount(t);
+                int victimLocks = lockCount(victim);
+                if (locks != victimLocks) {
+                    if (locks < victimLocks) {
+                        victim = t;
+                    }
+                    continue;
+                }
+            }
+            if (t.getId() > victim.getId()) {
+                victim = t;
+            }
+        }
+        return victim;
+    }
+
+    private int lockCount(TransactionId tid) {
+        HashSet<PageId> pages = txRelatedPages.get(tid);
+        return pages == null ? 0 : pages.size();
+    }
+
+    /** Sets which transaction of a deadlock is aborted; YOUNGEST by default. */
+    public void setVictimPolicy(VictimPolicy policy) {
+        victimPolicy = policy;
+    }
+
+    public VictimPolicy getVictimPolicy() {
+        return victimPolicy;
+    }
+
+    /** Number of transactions aborted to break a deadlock. */
+    public long getVictims() {
+        return victims.sum();
+    }
+
+    /**
+     * Total time, over getVictims() deadlocks, from the lock request that
+     * closed the cycle to the victim giving up, in nanoseconds.
+     */
+    public long getDetectionNanos() {
+        return detectionNanos.sum();
+    }
+
+    /** Number of times the wait-for graph was searched for a cycle. */
+    public long getSearches() {
+        return searches.sum();
+    }
+
+    /** Total time spent searching the wait-for graph, in nanoseconds. */
+    public long getSearchNanos() {
+        return searchNanos.sum();
+    }
+
+    /** Zeroes the deadlock counters. */
+    public void resetStats() {
+        victims.reset();
+        detectionNanos.reset();
+        searches.reset();
+        searchNanos.reset();
+    }
+
     // for testing purpose
 //    public void flush(PageId pid){
 //
@@ -2,7 +2,15 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 import java.lang.reflect.*;
 
 /**
@@ -35,24 +43,27 @@ must not be declared synchronized and must begin with a block like:
 */
 
 /**
-<p> The format of the log file is as follows:
+<p> The log is a directory with a control file and segment files. Its
+format is as follows:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The control file holds a long integer LSN (see below) of the last
+written checkpoint, or -1 if there are no checkpoints, the long integer LSN
+of the first record still in the log, and the integer size of its segments.
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> All other data in the log consists of log records, written one
+after the other across segments of that size.  A record can begin in one
+segment and end in the next.  Log records are variable length.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer LSN representing
+the position in the log where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, DELTA, BEGIN,
+and CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
@@ -61,20 +72,106 @@ after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
 methods.  See LogFile.print() for an example.
 
+<li>DELTA records log an update as the byte ranges of the page that
+changed, with their before and after bytes; see PageDelta. logWrite writes
+a DELTA record instead of an UPDATE record whenever the delta is less than
+half a page.
+
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
+the checkpoint was taken and their first log record on disk, followed by
+the buffer pool's dirty page table.  The format
 of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+as a long integer transaction id and a long integer first record LSN
+for each active transaction; then an integer count of dirty pages, and
+for each the integers of its PageId (a count, then the serialized id)
+and the long integer LSN of its first update that may not be on disk.
 
 </ul>
 
+<p> <u> Log buffer: </u>
+<p>
+
+Records are not written to the log field by field. They are serialized
+into an in-memory log buffer, a direct ByteBuffer, which is written to the
+segments when it fills up or when the log is forced. Every byte of the log
+has a log sequence number (LSN), its offset from the start of the log as
+it was first written. LSNs never go down, so records can refer to each
+other by LSN however much of the log is truncated. logWrite returns the
+LSN just past its record, and force(lsn) makes the log durable up to a
+given LSN. Methods that read the log write out the buffer first.
+
+<p> <u> Segments: </u>
+<p>
+
+The byte at LSN n is in the segment file numbered n / segment size (in
+hexadecimal, see segmentFile) at offset n % segment size. logTruncate
+only moves the first LSN in the control file forward and drops the
+segments wholly before it: a few are renamed to numbers past the end of
+the log, to be written over when the log gets there, and the rest are
+deleted. Whatever a reused segment held before cannot pass for a record,
+since every record ends with its own start LSN. Readers map segments into
+memory one at a time.
+
+<p> <u> Group commit: </u>
+<p>
+
+logCommit appends the COMMIT record under the LogFile's monitor but forces
+the log outside it. The first committer to need a force becomes the leader
+and forces the log for every record appended so far; committers that arrive
+meanwhile wait for the next force, which covers all of them. With a group
+commit wait set, the leader first waits that many microseconds for others
+to join its batch.
 */
 
 public class LogFile {
 
+    /**
+     * System property with the group commit wait, in microseconds.
+     *
+     * @see #setGroupCommitWaitMicros
+     */
+    public static final String GROUP_COMMIT_WAIT_PROPERTY = "simpledb.log.groupcommit.micros";
+
+    /**
+     * System property with the number of threads recover() redoes pages
+     * with.
+     *
+     * @see #setRecoveryThreads
+     */
+    public static final String RECOVERY_THREADS_PROPERTY = "simpledb.recovery.threads";
+
+    /**
+     * System property with the size of the segments of a new log, in bytes.
+     *
+     * @see #setSegmentSize
+     */
+    public static final String SEGMENT_SIZE_PROPERTY = "simpledb.log.segment.bytes";
+
+    public static final int DEFAULT_SEGMENT_SIZE = 16 << 20;
+
+    // segments logTruncate keeps for reuse instead of deleting
+    private static final int MAX_SPARE_SEGMENTS = 4;
+    private static final String CONTROL_FILE = "control";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    // the directory with the control file and the segments
     final File logFile;
-    private RandomAccessFile raf;
+    private final RandomAccessFile control;
+    // the segment records are being written to, number tailIndex
+    private FileChannel tail; // protected by this
+    private long tailIndex = -1; // protected by this
+
+    private static final int LOG_BUFFER_BYTES = 1 << 20;
+    private final ByteBuffer logBuffer = ByteBuffer.allocateDirect(LOG_BUFFER_BYTES);
+    // LSN of the first byte in logBuffer; everything before it has been
+    // written to the segments
+    private long bufferStart; // protected by this
+    // what the control file holds
+    private long checkpointLsn = NO_CHECKPOINT_ID; // protected by this
+    private long firstLsn = 0; // protected by this
+    private int segmentSize; // protected by this
+    private volatile int newSegmentSize = Integer.getInteger(SEGMENT_SIZE_PROPERTY, DEFAULT_SEGMENT_SIZE);
+    private final DataOutputStream out = new DataOutputStream(new LogBufferStream());
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -82,17 +179,31 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
+    // the checkpoint LSN, the first LSN and the segment size
+    final static int CONTROL_SIZE = 2 * LONG_SIZE + INT_SIZE;
 
-    long currentOffset = -1;//protected by this
+    long currentOffset = -1;//protected by this; the LSN of the next record
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    // the log is durable up to LSN forcedLsn
+    private final Object forceLock = new Object();
+    private long forcedLsn = 0; // protected by forceLock
+    private boolean forcing = false; // protected by forceLock; a leader is forcing
+    private volatile boolean groupCommit = true;
+    private volatile long groupCommitWaitMicros = Long.getLong(GROUP_COMMIT_WAIT_PROPERTY, 0);
+    private final LongAdder commits = new LongAdder();
+    private final LongAdder forces = new LongAdder();
+    private volatile int recoveryThreads = Math.max(1,
+            Integer.getInteger(RECOVERY_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors()));
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -102,11 +213,21 @@ public class LogFile {
         do it, while if someone starts adding log file entries, then first
         throw out the initial log file contents.
 
-        @param f The log file's name
+        @param f The log's directory
+        @throws IOException if f is a log file from before segments,
+        which recover() can't read
     */
     public LogFile(File f) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        if (f.isFile()) {
+            // it may hold committed work that never made it to the tables,
+            // so it's not ours to throw away
+            throw new IOException(f + " is a log from an older version, which can't be recovered from;"
+                    + " recover with that version, or remove the file");
+        }
+        f.mkdirs();
+        control = new RandomAccessFile(new File(f, CONTROL_FILE), "rw");
+        segmentSize = newSegmentSize;
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -127,14 +248,168 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            logBuffer.clear();
+            closeTail();
+            for (long i : segments()) {
+                segmentFile(i).delete();
+            }
+            segmentSize = newSegmentSize;
+            checkpointLsn = NO_CHECKPOINT_ID;
+            firstLsn = 0;
+            writeControl();
+            bufferStart = 0;
+            currentOffset = getEndLsn();
+        }
+    }
+
+    /**
+     * OutputStream that appends to the log buffer, writing the buffer to
+     * the segments whenever it fills up.
+     */
+    private class LogBufferStream extends OutputStream {
+        public void write(int b) throws IOException {
+            if (!logBuffer.hasRemaining()) {
+                drain();
+            }
+            logBuffer.put((byte) b);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!logBuffer.hasRemaining()) {
+                    drain();
+                }
+                int n = Math.min(len, logBuffer.remaining());
+                logBuffer.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+    }
+
+    /** Writes checkpointLsn, firstLsn and segmentSize to the control file and forces it. */
+    private void writeControl() throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(CONTROL_SIZE);
+        b.putLong(checkpointLsn).putLong(firstLsn).putInt(segmentSize).flip();
+        FileChannel ch = control.getChannel();
+        while (b.hasRemaining()) {
+            ch.write(b, b.position());
+        }
+        ch.force(true);
+    }
+
+    /** Returns the file of the segment with the given number. */
+    File segmentFile(long index) {
+        return new File(logFile, String.format("%016x", index) + SEGMENT_SUFFIX);
+    }
+
+    /** Returns the numbers of the segment files in the log's directory, in order. */
+    private long[] segments() {
+        String[] names = logFile.list();
+        if (names == null) {
+            return new long[0];
+        }
+        long[] indexes = new long[names.length];
+        int n = 0;
+        for (String name : names) {
+            if (name.endsWith(SEGMENT_SUFFIX) && name.length() == 16 + SEGMENT_SUFFIX.length()) {
+                try {
+                    indexes[n] = Long.parseUnsignedLong(name.substring(0, 16), 16);
+                    n++;
+                } catch (NumberFormatException e) {
+                    // not ours
+                }
+            }
+        }
+        indexes = Arrays.copyOf(indexes, n);
+        Arrays.sort(indexes);
+        return indexes;
+    }
+
+    /**
+     * Makes segment index the one records are written to. The segment
+     * before it is forced first, since force() only forces the tail. If an
+     * interrupt closed the tail's channel, the segment can be opened again
+     * this way; forcing the new channel forces what went through the old.
+     */
+    private void openTail(long index) throws IOException {
+        if (tail != null && tail.isOpen()) {
+            tail.force(true);
+        }
+        closeTail();
+        tail = new RandomAccessFile(segmentFile(index), "rw").getChannel();
+        tailIndex = index;
+    }
+
+    private void closeTail() throws IOException {
+        if (tail != null) {
+            tail.close();
+            tail = null;
+            tailIndex = -1;
+        }
+    }
+
+    /** Writes the log buffer to the segments, without forcing them. */
+    synchronized void drain() throws IOException {
+        logBuffer.flip();
+        try {
+            while (logBuffer.hasRemaining()) {
+                long index = bufferStart / segmentSize;
+                if (index != tailIndex || !tail.isOpen()) {
+                    openTail(index);
+                }
+                int offset = (int) (bufferStart % segmentSize);
+                int limit = logBuffer.limit();
+                logBuffer.limit((int) Math.min(limit, logBuffer.position() + (long) (segmentSize - offset)));
+                try {
+                    bufferStart += tail.write(logBuffer, offset);
+                } finally {
+                    logBuffer.limit(limit);
+                }
+            }
+        } finally {
+            // whatever didn't make it out stays buffered
+            logBuffer.compact();
+        }
+    }
+
+    /** Returns the LSN just past the last record appended. */
+    public synchronized long getEndLsn() {
+        return bufferStart + logBuffer.position();
+    }
+
+    /**
+     * Returns the LSN up to which the log is known to be on disk; a crash
+     * may lose anything after it.
+     */
+    synchronized long durableLsn() {
+        synchronized (forceLock) {
+            return Math.max(firstLsn, forcedLsn);
         }
     }
 
+    /**
+     * Sets the size of the segments of a new log, in bytes; by default
+     * DEFAULT_SEGMENT_SIZE, or the SEGMENT_SIZE_PROPERTY. A log that is
+     * recovered keeps the size it was written with.
+     */
+    public void setSegmentSize(int bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("segment size must be positive");
+        }
+        newSegmentSize = bytes;
+    }
+
+    /** Returns the size of the segments of this log, in bytes. */
+    public synchronized int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /** Returns whether tid has written log records and not finished yet. */
+    public synchronized boolean isLive(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
@@ -158,10 +433,10 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                out.writeInt(ABORT_RECORD);
+                out.writeLong(tid.getId());
+                out.writeLong(currentOffset);
+                currentOffset = getEndLsn();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -173,17 +448,91 @@ public class LogFile {
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        long lsn;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            out.writeInt(COMMIT_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(currentOffset);
+            currentOffset = getEndLsn();
+            tidToFirstLogRecord.remove(tid.getId());
+            lsn = getEndLsn();
+            if (!groupCommit) {
+                force(lsn);
+            }
+        }
+        commits.increment();
+        if (groupCommit) {
+            awaitForced(lsn);
+        }
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /**
+     * Returns once the log is durable up to lsn, forcing it if nobody else
+     * is.
+     */
+    private void awaitForced(long lsn) throws IOException {
+        synchronized (forceLock) {
+            while (forcedLsn < lsn) {
+                if (!forcing) {
+                    forcing = true;
+                    break;
+                }
+                try {
+                    forceLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("waiting for the log to be forced");
+                }
+            }
+            if (forcedLsn >= lsn) {
+                return;
+            }
+        }
+        // we lead this batch
+        try {
+            long wait = groupCommitWaitMicros;
+            if (wait > 0) {
+                LockSupport.parkNanos(wait * 1000);
+            }
+            force(lsn);
+        } finally {
+            synchronized (forceLock) {
+                forcing = false;
+                forceLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Turns group commit on (the default) or off. Without it, every
+     * logCommit forces the log on its own, holding the LogFile's monitor.
+     */
+    public void setGroupCommit(boolean on) {
+        groupCommit = on;
+    }
+
+    /**
+     * Sets how long the leader of a group commit waits for more COMMIT
+     * records before it forces the log, in microseconds; 0, the default,
+     * forces at once.
+     */
+    public void setGroupCommitWaitMicros(long micros) {
+        groupCommitWaitMicros = Math.max(0, micros);
+    }
+
+    /** Returns the number of COMMIT records written. */
+    public long getCommits() {
+        return commits.sum();
+    }
+
+    /** Returns the number of times the log was forced to disk. */
+    public long getForces() {
+        return forces.sum();
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -192,13 +541,31 @@ public class LogFile {
         @param before The before image of the page
         @param after The after image of the page
 
+        @return the LSN just past the record; see force(long)
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        return logWrite(tid.getId(), before, after);
+    }
+
+    private synchronized long logWrite(long tid, Page before, Page after)
+        throws IOException  {
+        Debug.log("WRITE, offset = " + getEndLsn());
         preAppend();
+        // the buffer pool logs pages of transactions that never wrote a
+        // BEGIN record, too
+        tidToFirstLogRecord.putIfAbsent(tid, currentOffset);
+        PageDelta delta = PageDelta.between(before, after);
+        if (delta != null) {
+            out.writeInt(DELTA_RECORD);
+            out.writeLong(tid);
+            delta.write(out);
+            out.writeLong(currentOffset);
+            currentOffset = getEndLsn();
+            return getEndLsn();
+        }
         /* update record conists of
 
            record type
@@ -207,18 +574,19 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        out.writeInt(UPDATE_RECORD);
+        out.writeLong(tid);
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        writePageData(out,before);
+        writePageData(out,after);
+        out.writeLong(currentOffset);
+        currentOffset = getEndLsn();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return getEndLsn();
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+    void writePageData(DataOutput raf, Page p) throws IOException{
         PageId pid = p.getId();
         int pageInfo[] = pid.serialize();
 
@@ -246,7 +614,7 @@ public class LogFile {
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
+    Page readPageData(DataInput raf) throws IOException {
         PageId pid;
         Page newPage = null;
 
@@ -258,24 +626,24 @@ public class LogFile {
             Class<?> pageClass = Class.forName(pageClassName);
 
             Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
+            int numIdArgs = readLength(raf, INT_SIZE);
             Object idArgs[] = new Object[numIdArgs];
             for (int i = 0; i<numIdArgs;i++) {
                 idArgs[i] = new Integer(raf.readInt());
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+            pid = (PageId)constructorFor(idConsts, numIdArgs, int.class).newInstance(idArgs);
 
             Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+            int pageSize = readLength(raf, 1);
 
             byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+            raf.readFully(pageData); //read before image
 
             Object[] pageArgs = new Object[2];
             pageArgs[0] = pid;
             pageArgs[1] = pageData;
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+            newPage = (Page)constructorFor(pageConsts, 2, byte[].class).newInstance(pageArgs);
 
             //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
         } catch (ClassNotFoundException e){
@@ -295,6 +663,40 @@ public class LogFile {
 
     }
 
+    /**
+     * Reads the length of an array whose elements take unit bytes each in
+     * the log, and checks that there are that many bytes left to read, so
+     * that the stale bytes of a reused segment can't size an array beyond
+     * the end of the log. Records in the log are read through a LogReader,
+     * which knows how much of the log is left; other readers are only
+     * checked for a negative length.
+     *
+     * @throws IOException if the length can't be right
+     */
+    static int readLength(DataInput in, int unit) throws IOException {
+        int n = in.readInt();
+        long left = in instanceof InputStream ? ((InputStream) in).available() : Integer.MAX_VALUE;
+        if (n < 0 || (long) n * unit > left) {
+            throw new IOException("length " + n + " runs past the end of the log");
+        }
+        return n;
+    }
+
+    /**
+     * Returns the constructor taking numArgs arguments, the last of type
+     * lastArg; getDeclaredConstructors() returns them in no particular order.
+     */
+    private static Constructor<?> constructorFor(Constructor<?>[] consts, int numArgs, Class<?> lastArg)
+            throws InstantiationException {
+        for (Constructor<?> c : consts) {
+            Class<?>[] params = c.getParameterTypes();
+            if (params.length == numArgs && (numArgs == 0 || params[numArgs - 1] == lastArg)) {
+                return c;
+            }
+        }
+        throw new InstantiationException("no constructor for log record");
+    }
+
     /** Write a BEGIN record for the specified transaction
         @param tid The transaction that is beginning
 
@@ -307,149 +709,130 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        out.writeInt(BEGIN_RECORD);
+        out.writeLong(tid.getId());
+        out.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        currentOffset = getEndLsn();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.
+        <p>
+        Checkpoints are fuzzy: no page is written. The record holds the
+        active transactions and the buffer pool's dirty page table, the
+        pages with logged updates that may not be on disk yet; redo after a
+        crash starts at the first of those updates. Eviction and the
+        PageCleaner write the pages in their own time, which moves that
+        point forward; the files they wrote to are forced before the control
+        file points to the record. Only the LogFile's monitor is held, while
+        the two tables are copied into the record.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
+        long startCpOffset;
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + position());
+            preAppend();
+            // the pool notes a page before its update is appended, so no
+            // record before this checkpoint is missing from the table
+            Map<PageId,Long> dirty = Database.getBufferPool().getDirtyPageTable();
+            startCpOffset = getEndLsn();
+            out.writeInt(CHECKPOINT_RECORD);
+            out.writeLong(-1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            out.writeInt(tidToFirstLogRecord.size());
+            for (Map.Entry<Long,Long> e : tidToFirstLogRecord.entrySet()) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                out.writeLong(e.getKey());
+                out.writeLong(e.getValue());
+            }
+
+            out.writeInt(dirty.size());
+            for (Map.Entry<PageId,Long> e : dirty.entrySet()) {
+                int[] pid = e.getKey().serialize();
+                out.writeInt(pid.length);
+                for (int i : pid) {
+                    out.writeInt(i);
                 }
+                out.writeLong(e.getValue());
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            out.writeLong(startCpOffset);
+            currentOffset = getEndLsn();
+            //Debug.log("CP OFFSET = " + currentOffset);
+        }
+        // the record has to be on disk before the control file points to it,
+        // and so do the pages the dirty page table leaves out as written
+        force();
+        Database.getBufferPool().forceWrittenFiles();
+        synchronized (this) {
+            // a later checkpoint may have got here first
+            if (startCpOffset > checkpointLsn) {
+                checkpointLsn = startCpOffset;
+                writeControl();
             }
         }
-
         logTruncate();
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption.
+        <p>
+        Recovery reads the log from the last checkpoint, the first update
+        in its dirty page table, or the first record of a transaction active
+        at it, whichever comes first; everything before can go. The control
+        file's first LSN moves up to there, and the segments wholly before
+        it are renamed to spares past the end of the log, up to
+        MAX_SPARE_SEGMENTS of them, or deleted. No record is read but the
+        checkpoint and none is copied, however long the log is.
+    */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
+        drain();
+        if (checkpointLsn == NO_CHECKPOINT_ID) {
+            return;
+        }
+        Record cp = readRecord(new LogReader(checkpointLsn, bufferStart), checkpointLsn);
+        if (cp == null || cp.type != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
+        long minLogRecord = cp.redoLsn(checkpointLsn);
+        for (int i = 1; i < cp.active.length; i += 2) {
+            minLogRecord = Math.min(minLogRecord, cp.active[i]);
+        }
+        if (minLogRecord <= firstLsn) {
+            return;
+        }
+        firstLsn = minLogRecord;
+        writeControl();
+
+        // the control file no longer points before firstLsn, so a crash
+        // from here on leaves at worst a segment to drop next time
+        long firstIndex = firstLsn / segmentSize;
+        long endIndex = bufferStart / segmentSize;
+        long[] segments = segments();
+        int spares = 0;
+        long next = endIndex + 1;
+        for (long i : segments) {
+            if (i > endIndex) {
+                spares++;
+                next = i + 1;
             }
         }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
+        for (long i : segments) {
+            if (i >= firstIndex) {
                 break;
             }
+            Debug.log("TRUNCATING LOG SEGMENT " + i + "; NEW START : " + firstLsn);
+            if (spares < MAX_SPARE_SEGMENTS && segmentFile(i).renameTo(segmentFile(next))) {
+                spares++;
+                next++;
+            } else {
+                segmentFile(i).delete();
+            }
         }
-
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
         //print();
     }
 
@@ -467,7 +850,101 @@ public class LogFile {
             synchronized(this) {
                 preAppend();
                 // some code goes here
+                Long first = tidToFirstLogRecord.get(tid.getId());
+                if (first != null) {
+                    undo(Collections.singletonMap(tid.getId(), first));
+                }
+            }
+        }
+    }
+
+    /**
+     * Undoes the UPDATE and DELTA records of the given transactions, newest
+     * first; firsts maps each transaction to its first record. Each page is
+     * written back and its restored image logged as an update by the
+     * transaction that had changed it, so that redo after a later crash
+     * repeats the undo instead of bringing the update back.
+     */
+    private void undo(Map<Long,Long> firsts) throws IOException {
+        drain();
+        // start offset, end offset and tid of each record to undo
+        ArrayList<long[]> updates = new ArrayList<long[]>();
+        long end = bufferStart;
+        LogReader in = new LogReader(Collections.min(firsts.values()), end);
+        while (in.position() < end) {
+            long start = in.position();
+            int type = in.readInt();
+            long record_tid = in.readLong();
+            skipRecordBody(in, type);
+            in.readLong();
+            if (firsts.containsKey(record_tid) && (type == UPDATE_RECORD || type == DELTA_RECORD)) {
+                updates.add(new long[]{start, in.position(), record_tid});
+            }
+        }
+
+        // a DELTA is undone on top of the page as the later records left
+        // it, starting from disk
+        LinkedHashMap<PageId,Page> pages = new LinkedHashMap<PageId,Page>();
+        HashMap<PageId,Page> onDisk = new HashMap<PageId,Page>();
+        HashMap<PageId,Long> owners = new HashMap<PageId,Long>();
+        for (int i = updates.size() - 1; i >= 0; i--) {
+            long[] u = updates.get(i);
+            byte[] bytes = new byte[(int) (u[1] - u[0])];
+            in.seek(u[0]);
+            in.readFully(bytes);
+            DataInputStream record = new DataInputStream(new ByteArrayInputStream(bytes));
+            int type = record.readInt();
+            record.readLong();
+            Page before = null;
+            PageDelta delta = null;
+            PageId pid;
+            if (type == UPDATE_RECORD) {
+                before = readPageData(record);
+                pid = before.getId();
+            } else {
+                delta = PageDelta.read(record);
+                pid = delta.pageId();
+            }
+            if (!onDisk.containsKey(pid)) {
+                onDisk.put(pid, Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid));
+            }
+            if (delta != null) {
+                Page current = pages.containsKey(pid) ? pages.get(pid) : onDisk.get(pid);
+                byte[] data = current.getPageData();
+                delta.apply(data, false);
+                before = delta.toPage(data);
             }
+            pages.put(pid, before);
+            owners.put(pid, u[2]);
+        }
+        for (Page p : pages.values()) {
+            PageId pid = p.getId();
+            logWrite(owners.get(pid), onDisk.get(pid), p);
+            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            file.writePage(p);
+            Database.getBufferPool().fileWritten(file);
+            Database.getBufferPool().discardPage(pid);
+        }
+    }
+
+    /** Skips the rest of a record of the given type, up to its start offset. */
+    private void skipRecordBody(DataInput in, int type) throws IOException {
+        switch (type) {
+        case UPDATE_RECORD:
+            readPageData(in);
+            readPageData(in);
+            break;
+        case DELTA_RECORD:
+            PageDelta.read(in);
+            break;
+        case CHECKPOINT_RECORD:
+            int numXactions = in.readInt();
+            in.skipBytes(numXactions * 2 * LONG_SIZE);
+            int numDirty = in.readInt();
+            for (int i = 0; i < numDirty; i++) {
+                in.skipBytes(in.readInt() * INT_SIZE + LONG_SIZE);
+            }
+            break;
         }
     }
 
@@ -478,7 +955,9 @@ public class LogFile {
     public synchronized void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            drain();
+            closeTail();
+            control.close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -488,23 +967,611 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        <p>
+        Recovery follows ARIES. One pass from the redo point of the last
+        checkpoint (its first update that may not have been on disk) does
+        analysis, finding the transactions that never committed or aborted,
+        and redo, which repeats the after image of every UPDATE and DELTA
+        record, whoever wrote it. Before the checkpoint, only records of
+        pages in its dirty page table, from their first update on, are
+        redone. Redo is split across getRecoveryThreads() threads by PageId,
+        so the records of a page are applied in log order by one thread.
+        Undo then rolls the unfinished transactions back like rollback()
+        does, and logs an ABORT record for each.
+        <p>
+        A crash can leave the last record cut short. The log ends at the
+        first record that does not read back whole or does not end with
+        its own start LSN; anything after it is cut off.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
+                logBuffer.clear();
+                tidToFirstLogRecord.clear();
+                closeTail();
+                long cpLoc = NO_CHECKPOINT_ID;
+                if (control.length() >= CONTROL_SIZE) {
+                    control.seek(0);
+                    cpLoc = control.readLong();
+                    firstLsn = control.readLong();
+                    segmentSize = control.readInt();
+                } else {
+                    // no log was ever started here
+                    for (long i : segments()) {
+                        segmentFile(i).delete();
+                    }
+                    firstLsn = 0;
+                    segmentSize = newSegmentSize;
+                }
+                long from = firstLsn;
+                Record cp = null;
+                if (cpLoc >= firstLsn) {
+                    Record r = readRecord(new LogReader(cpLoc, Long.MAX_VALUE), cpLoc);
+                    if (r != null && r.type == CHECKPOINT_RECORD) {
+                        cp = r;
+                        from = Math.max(firstLsn, cp.redoLsn(cpLoc));
+                    }
+                }
+
+                // analysis and redo
+                HashMap<Long,Long> losers = new HashMap<Long,Long>();
+                // the log ends at the first record that doesn't read back
+                LogReader in = new LogReader(from, Long.MAX_VALUE);
+                long end = from;
+                Redo redo = new Redo(recoveryThreads);
+                try {
+                    for (;;) {
+                        Record r = readRecord(in, end);
+                        if (r == null) {
+                            break;
+                        }
+                        switch (r.type) {
+                        case BEGIN_RECORD:
+                            losers.put(r.tid, end);
+                            break;
+                        case COMMIT_RECORD:
+                        case ABORT_RECORD:
+                            losers.remove(r.tid);
+                            break;
+                        case UPDATE_RECORD:
+                        case DELTA_RECORD:
+                            losers.putIfAbsent(r.tid, end);
+                            if (cp == null || end >= cpLoc || cp.mayBeMissing(r.pageId(), end)) {
+                                redo.add(r);
+                            }
+                            break;
+                        case CHECKPOINT_RECORD:
+                            for (int i = 0; i < r.active.length; i += 2) {
+                                losers.merge(r.active[i], r.active[i + 1], Math::min);
+                            }
+                            break;
+                        }
+                        end = in.position();
+                    }
+                } finally {
+                    redo.finish();
+                }
+                Debug.log("LOG ENDS AT " + end);
+                cutAt(end);
+                checkpointLsn = cp != null ? cpLoc : NO_CHECKPOINT_ID;
+                if (cp == null) {
+                    // the checkpoint pointer is unset, or points past the end
+                    writeControl();
+                }
+                bufferStart = end;
+                currentOffset = end;
+
+                // undo
+                if (!losers.isEmpty()) {
+                    tidToFirstLogRecord.putAll(losers);
+                    undo(losers);
+                    for (Long tid : losers.keySet()) {
+                        out.writeInt(ABORT_RECORD);
+                        out.writeLong(tid);
+                        out.writeLong(currentOffset);
+                        currentOffset = getEndLsn();
+                    }
+                    tidToFirstLogRecord.clear();
+                }
+                force();
             }
          }
     }
 
+    /**
+     * Cuts the log off at lsn: the segment lsn falls in is truncated there
+     * and the segments after it are deleted, spares included. recover()
+     * cuts the log after its last whole record, since records written
+     * past a torn one may be whole too, and must not read back once new
+     * records are written in front of them.
+     */
+    synchronized void cutAt(long lsn) throws IOException {
+        long index = lsn / segmentSize;
+        File f = segmentFile(index);
+        if (f.exists()) {
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            try {
+                if (raf.length() > lsn % segmentSize) {
+                    raf.setLength(lsn % segmentSize);
+                }
+            } finally {
+                raf.close();
+            }
+        }
+        for (long i : segments()) {
+            if (i > index) {
+                segmentFile(i).delete();
+            }
+        }
+    }
+
+    /**
+     * Sets the number of threads recover() redoes pages with; by default
+     * the number of processors, or the RECOVERY_THREADS_PROPERTY.
+     */
+    public void setRecoveryThreads(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        recoveryThreads = threads;
+    }
+
+    public int getRecoveryThreads() {
+        return recoveryThreads;
+    }
+
+    /** A log record as recover() reads it; only the fields its type has are set. */
+    private static class Record {
+        int type;
+        long tid;
+        // UPDATE_RECORD
+        Page after;
+        // DELTA_RECORD
+        PageDelta delta;
+        // CHECKPOINT_RECORD: a tid and its first record LSN, for each
+        // active transaction, and the dirty page table
+        long[] active;
+        Map<PageId,Long> dirty;
+
+        PageId pageId() {
+            return after != null ? after.getId() : delta.pageId();
+        }
+
+        /** Returns where redo starts after this checkpoint, written at cpLsn. */
+        long redoLsn(long cpLsn) {
+            long lsn = cpLsn;
+            for (long recLsn : dirty.values()) {
+                lsn = Math.min(lsn, recLsn);
+            }
+            return lsn;
+        }
+
+        /**
+         * Returns whether an update of pid at lsn, before this checkpoint,
+         * may be missing from disk.
+         */
+        boolean mayBeMissing(PageId pid, long lsn) {
+            Long recLsn = dirty.get(pid);
+            return recLsn != null && lsn >= recLsn;
+        }
+    }
+
+    /**
+     * Reads the record that starts at LSN start, or returns null if it
+     * was cut short or is garbage.
+     */
+    private Record readRecord(DataInput in, long start) {
+        try {
+            Record r = new Record();
+            r.type = in.readInt();
+            r.tid = in.readLong();
+            switch (r.type) {
+            case ABORT_RECORD:
+            case COMMIT_RECORD:
+            case BEGIN_RECORD:
+                break;
+            case UPDATE_RECORD:
+                readPageData(in);
+                r.after = readPageData(in);
+                break;
+            case DELTA_RECORD:
+                r.delta = PageDelta.read(in);
+                break;
+            case CHECKPOINT_RECORD:
+                if (r.tid != -1) {
+                    return null;
+                }
+                int numXactions = readLength(in, 2 * LONG_SIZE);
+                r.active = new long[2 * numXactions];
+                for (int i = 0; i < r.active.length; i++) {
+                    r.active[i] = in.readLong();
+                }
+                int numDirty = in.readInt();
+                r.dirty = new HashMap<PageId,Long>();
+                for (int i = 0; i < numDirty; i++) {
+                    int pidLength = in.readInt();
+                    if (pidLength != 2 && pidLength != 3) {
+                        return null;
+                    }
+                    int[] pid = new int[pidLength];
+                    for (int j = 0; j < pid.length; j++) {
+                        pid[j] = in.readInt();
+                    }
+                    r.dirty.put(PageDelta.pageIdOf(pid), in.readLong());
+                }
+                break;
+            default:
+                return null;
+            }
+            return in.readLong() == start ? r : null;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The redo pass of recover(). Records go to one of several threads by
+     * the hash of their PageId, so each page's records are applied in log
+     * order while different pages are redone in parallel. A thread keeps
+     * the pages it redoes in memory, reading each from disk the first time
+     * a DELTA needs it, and writes them when it has too many or is done.
+     */
+    private static class Redo {
+        private static final int BATCH = 256;
+        private static final int MAX_PAGES = 1024;
+        private static final List<Record> DONE = new ArrayList<Record>();
+
+        private final Worker[] workers;
+
+        Redo(int threads) {
+            workers = new Worker[threads];
+            for (int i = 0; i < threads; i++) {
+                workers[i] = new Worker("simpledb-redo-" + i);
+                workers[i].start();
+            }
+        }
+
+        void add(Record r) throws IOException {
+            PageId pid = r.pageId();
+            Worker w = workers[(pid.hashCode() & Integer.MAX_VALUE) % workers.length];
+            w.batch.add(r);
+            if (w.batch.size() == BATCH) {
+                w.send(w.batch);
+                w.batch = new ArrayList<Record>(BATCH);
+            }
+        }
+
+        /** Waits for the redo threads to write their pages. */
+        void finish() throws IOException {
+            for (Worker w : workers) {
+                w.send(w.batch);
+                w.send(DONE);
+            }
+            Throwable failure = null;
+            for (Worker w : workers) {
+                try {
+                    w.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("waiting for redo");
+                }
+                if (failure == null) {
+                    failure = w.failure;
+                }
+                // the caller holds the buffer pool's monitor, so the
+                // workers can't discard their pages themselves
+                for (PageId pid : w.written) {
+                    Database.getBufferPool().discardPage(pid);
+                }
+            }
+            if (failure != null) {
+                throw new IOException("redo failed", failure);
+            }
+        }
+
+        private static class Worker extends Thread {
+            private final ArrayBlockingQueue<List<Record>> queue = new ArrayBlockingQueue<List<Record>>(16);
+            List<Record> batch = new ArrayList<Record>(BATCH);
+            // the page objects only give the class and id to write the
+            // redone bytes as
+            private final HashMap<PageId,Page> pages = new HashMap<PageId,Page>();
+            private final HashMap<PageId,byte[]> data = new HashMap<PageId,byte[]>();
+            final ArrayList<PageId> written = new ArrayList<PageId>();
+            volatile Throwable failure;
+
+            Worker(String name) {
+                super(name);
+                setDaemon(true);
+            }
+
+            void send(List<Record> records) throws InterruptedIOException {
+                try {
+                    queue.put(records);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("handing records to redo");
+                }
+            }
+
+            public void run() {
+                try {
+                    for (List<Record> records = queue.take(); records != DONE; records = queue.take()) {
+                        if (failure != null) {
+                            continue;
+                        }
+                        try {
+                            for (Record r : records) {
+                                redo(r);
+                            }
+                            if (data.size() > MAX_PAGES) {
+                                writePages();
+                            }
+                        } catch (Throwable t) {
+                            failure = t;
+                        }
+                    }
+                    if (failure == null) {
+                        writePages();
+                    }
+                } catch (Throwable t) {
+                    failure = t;
+                }
+            }
+
+            private void redo(Record r) {
+                if (r.after != null) {
+                    PageId pid = r.after.getId();
+                    pages.put(pid, r.after);
+                    data.put(pid, r.after.getPageData());
+                    return;
+                }
+                PageId pid = r.delta.pageId();
+                byte[] bytes = data.get(pid);
+                if (bytes == null) {
+                    Page p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+                    pages.put(pid, p);
+                    bytes = p.getPageData();
+                    data.put(pid, bytes);
+                }
+                r.delta.apply(bytes, true);
+            }
+
+            private void writePages() throws Exception {
+                for (Map.Entry<PageId,byte[]> e : data.entrySet()) {
+                    Page proto = pages.get(e.getKey());
+                    Page p = (Page) constructorFor(proto.getClass().getDeclaredConstructors(), 2, byte[].class)
+                            .newInstance(proto.getId(), e.getValue());
+                    DbFile file = Database.getCatalog().getDatabaseFile(p.getId().getTableId());
+                    file.writePage(p);
+                    Database.getBufferPool().fileWritten(file);
+                    written.add(p.getId());
+                }
+                pages.clear();
+                data.clear();
+            }
+        }
+    }
+
+    /**
+     * A reader of the log from a given LSN up to a limit, which knows its
+     * LSN. It maps the segment it is in into memory, and the next one when
+     * it gets to its end; a missing or short segment ends the log.
+     */
+    private class LogReader extends DataInputStream {
+        LogReader(long lsn, long limit) {
+            super(new SegmentStream(lsn, limit));
+        }
+
+        long position() {
+            return ((SegmentStream) in).lsn;
+        }
+
+        /** Moves to lsn, below the limit. */
+        void seek(long lsn) {
+            ((SegmentStream) in).seek(lsn);
+        }
+    }
+
+    private class SegmentStream extends InputStream {
+        long lsn;
+        private final long limit;
+        private final int size = segmentSize;
+        // segment index, mapped; map's position is lsn's offset in it
+        private long index = -1;
+        private MappedByteBuffer map;
+        // where the last segment ends, once available() has looked
+        private long end = -1;
+
+        SegmentStream(long lsn, long limit) {
+            this.lsn = lsn;
+            this.limit = limit;
+        }
+
+        void seek(long lsn) {
+            this.lsn = lsn;
+            if (map != null && lsn / size == index && lsn % size <= map.limit()) {
+                map.position((int) (lsn % size));
+            } else {
+                map = null;
+                index = -1;
+            }
+        }
+
+        /** Returns whether there is a byte at lsn, mapping its segment if needed. */
+        private boolean ready() throws IOException {
+            if (lsn >= limit) {
+                return false;
+            }
+            if (map != null && map.hasRemaining()) {
+                return true;
+            }
+            long i = lsn / size;
+            if (i == index) {
+                // the segment ends short, or is missing
+                return false;
+            }
+            index = i;
+            map = null;
+            File f = segmentFile(i);
+            if (!f.exists()) {
+                return false;
+            }
+            FileChannel ch = new RandomAccessFile(f, "r").getChannel();
+            try {
+                map = ch.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(ch.size(), size));
+            } finally {
+                ch.close();
+            }
+            int offset = (int) (lsn % size);
+            if (offset >= map.limit()) {
+                map.position(map.limit());
+                return false;
+            }
+            map.position(offset);
+            return true;
+        }
+
+        public int read() throws IOException {
+            if (!ready()) {
+                return -1;
+            }
+            lsn++;
+            return map.get() & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!ready()) {
+                return -1;
+            }
+            int n = (int) Math.min(Math.min(len, map.remaining()), limit - lsn);
+            map.get(b, off, n);
+            lsn += n;
+            return n;
+        }
+
+        /**
+         * Returns how many bytes there are from lsn to the limit or the end
+         * of the last segment, whichever comes first. The segments are
+         * looked at on the first call only.
+         */
+        public int available() {
+            if (end < 0) {
+                long i = lsn / size;
+                end = i * size;
+                for (File f; end < limit && (f = segmentFile(i)).exists(); i++) {
+                    end = i * size + Math.min(f.length(), size);
+                }
+            }
+            return (int) Math.max(0, Math.min(Integer.MAX_VALUE, Math.min(end, limit) - lsn));
+        }
+
+        public long skip(long n) throws IOException {
+            if (n <= 0 || !ready()) {
+                return 0;
+            }
+            int skipped = (int) Math.min(Math.min(n, map.remaining()), limit - lsn);
+            map.position(map.position() + skipped);
+            lsn += skipped;
+            return skipped;
+        }
+    }
+
     /** Print out a human readable represenation of the log */
-    public void print() throws IOException {
+    public synchronized void print() throws IOException {
         // some code goes here
+        drain();
+        System.out.println("CHECKPOINT POINTER: " + checkpointLsn + ", FIRST LSN: " + firstLsn
+                + ", SEGMENT SIZE: " + segmentSize);
+        long end = bufferStart;
+        long start = firstLsn;
+        LogReader in = new LogReader(start, end);
+        for (Record r; start < end && (r = readRecord(in, start)) != null; start = in.position()) {
+            String body = "";
+            switch (r.type) {
+            case UPDATE_RECORD:
+            case DELTA_RECORD:
+                body = " page " + r.pageId();
+                break;
+            case CHECKPOINT_RECORD:
+                body = " active " + Arrays.toString(r.active) + " dirty " + r.dirty;
+                break;
+            }
+            System.out.println(start + ": " + RECORD_NAMES[r.type] + " tid " + r.tid + body);
+        }
+        if (start < end) {
+            System.out.println(start + ": cut short, " + (end - start) + " bytes");
+        }
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    private static final String[] RECORD_NAMES = {
+        null, "ABORT", "COMMIT", "UPDATE", "BEGIN", "CHECKPOINT", "DELTA"
+    };
+
+    /**
+     * Forces every record appended so far to disk.
+     */
+    public void force() throws IOException {
+        force(getEndLsn());
+    }
+
+    /**
+     * Makes the log durable up to lsn, unless it already is. The buffer is
+     * written out under the monitor, but the file is forced outside it, so
+     * records can be appended during the force.
+     */
+    public void force(long lsn) throws IOException {
+        synchronized (forceLock) {
+            if (forcedLsn >= lsn) {
+                return;
+            }
+        }
+        for (;;) {
+            long end;
+            FileChannel ch;
+            synchronized (this) {
+                drain();
+                end = bufferStart;
+                ch = tail;
+            }
+            try {
+                if (ch != null) {
+                    ch.force(true);
+                }
+            } catch (ClosedChannelException e) {
+                boolean movedOn;
+                synchronized (this) {
+                    movedOn = tail != ch;
+                    if (!movedOn) {
+                        // an interrupt closed it, here or in a write; open
+                        // the segment again so the log stays usable
+                        openTail(tailIndex);
+                    }
+                }
+                if (!movedOn || e instanceof ClosedByInterruptException) {
+                    throw e;
+                }
+                // the log moved on to a new segment, after forcing this one;
+                // force the new one
+                continue;
+            }
+            forces.increment();
+            markForced(end);
+            return;
+        }
+    }
+
+    private void markForced(long lsn) {
+        synchronized (forceLock) {
+            if (lsn > forcedLsn) {
+                forcedLsn = lsn;
+                forceLock.notifyAll();
+            }
+        }
     }
 
 }
@@ -6,6 +6,7 @@ import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.NoSuchElementException;
+import java.util.TreeSet;
 
 /**
  * LogicalPlan represents a logical query plan that has been through
@@ -271,6 +272,52 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** Returns the indexes of the columns of the given scan that the plan
+     *  refers to anywhere (select list, filters, joins, aggregate, group by
+     *  and order by), or null if it needs all of them, e.g. for SELECT *.
+     */
+    private int[] neededColumns(LogicalScanNode table) {
+        ArrayList<String> refs = new ArrayList<String>();
+        for (LogicalSelectListNode si : selectList) {
+            if (si.fname.equals("null.*")) {
+                return null;
+            }
+            refs.add(si.fname);
+        }
+        for (LogicalFilterNode lf : filters) {
+            refs.add(lf.tableAlias + "." + lf.fieldPureName);
+        }
+        for (LogicalJoinNode lj : joins) {
+            refs.add(lj.t1Alias + "." + lj.f1PureName);
+            if (!(lj instanceof LogicalSubplanJoinNode)) {
+                refs.add(lj.t2Alias + "." + lj.f2PureName);
+            }
+        }
+        refs.add(aggField);
+        refs.add(groupByField);
+        refs.add(oByField);
+
+        TupleDesc td = Database.getCatalog().getTupleDesc(table.t);
+        TreeSet<Integer> needed = new TreeSet<Integer>();
+        for (String ref : refs) {
+            if (ref == null || !ref.startsWith(table.alias + ".")) {
+                continue;
+            }
+            try {
+                needed.add(td.fieldNameToIndex(ref.substring(table.alias.length() + 1)));
+            } catch (NoSuchElementException e) {
+                // reported as a ParsingException further down
+                return null;
+            }
+        }
+        int[] columns = new int[needed.size()];
+        int i = 0;
+        for (int c : needed) {
+            columns[i++] = c;
+        }
+        return columns;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -299,6 +346,7 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown table " + table.t);
             }
             
+            ss.setNeededColumns(neededColumns(table));
             subplanMap.put(table.alias,ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
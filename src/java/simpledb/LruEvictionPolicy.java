@@ -0,0 +1,60 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Evicts the least recently used page. The pages are kept in an
+ * access-ordered LinkedHashMap, least recently used first, so victims come
+ * straight off its front. A hit doesn't touch the map, which only changes
+ * under the BufferPool's monitor: it queues the page, once until the queue
+ * is drained, and the queued pages move to the back of the map before the
+ * next victims are picked.
+ */
+public class LruEvictionPolicy implements EvictionPolicy {
+
+    private static final class Entry {
+        final PageId pid;
+        // true while the page is in hits
+        volatile boolean queued;
+
+        Entry(PageId pid) {
+            this.pid = pid;
+        }
+    }
+
+    private final ConcurrentHashMap<PageId, Entry> entries = new ConcurrentHashMap<>();
+    // least recently used first
+    private final LinkedHashMap<PageId, Entry> order = new LinkedHashMap<PageId, Entry>(16, 0.75f, true);
+    // pages hit since the last drain, in hit order
+    private final ConcurrentLinkedQueue<Entry> hits = new ConcurrentLinkedQueue<Entry>();
+
+    public void admitted(PageId pid) {
+        Entry e = new Entry(pid);
+        entries.put(pid, e);
+        order.put(pid, e);
+    }
+
+    public void accessed(PageId pid) {
+        Entry e = entries.get(pid);
+        if (e != null && !e.queued) {
+            e.queued = true;
+            hits.add(e);
+        }
+    }
+
+    public void removed(PageId pid) {
+        entries.remove(pid);
+        order.remove(pid);
+    }
+
+    public Iterator<PageId> victims() {
+        for (Entry e; (e = hits.poll()) != null; ) {
+            e.queued = false;
+            // moves it to the back, unless it has been removed since
+            order.get(e.pid);
+        }
+        return order.keySet().iterator();
+    }
+}
@@ -0,0 +1,91 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * PageArena is a fixed set of page-sized frames carved out of direct
+ * (off-heap) ByteBuffers that are allocated once, up front. A BufferPool in
+ * off-heap mode reads pages straight into these frames, so the bytes of
+ * cached pages are neither on the Java heap nor traced by the GC, and the
+ * pool's memory use is fixed by its byte budget.
+ * <p>
+ * Frames are handed out by slot number. Not thread-safe; the BufferPool only
+ * calls allocate and release with its monitor held.
+ *
+ * @see BufferPool#offHeap
+ */
+public class PageArena {
+
+    // largest direct buffer we allocate; a ByteBuffer can't exceed 2 GB
+    private static final int MAX_CHUNK_BYTES = 1 << 30;
+
+    private final int frameSize;
+    private final int framesPerChunk;
+    private final ByteBuffer[] chunks;
+    private final int numFrames;
+    // stack of free slots; freeSlots[0..free) are free
+    private final int[] freeSlots;
+    private int free;
+
+    /**
+     * Allocates numFrames frames of frameSize bytes each.
+     */
+    public PageArena(int numFrames, int frameSize) {
+        this.frameSize = frameSize;
+        this.numFrames = numFrames;
+        this.framesPerChunk = Math.max(1, MAX_CHUNK_BYTES / frameSize);
+        int numChunks = (numFrames + framesPerChunk - 1) / framesPerChunk;
+        this.chunks = new ByteBuffer[numChunks];
+        for (int c = 0; c < numChunks; c++) {
+            int frames = Math.min(framesPerChunk, numFrames - c * framesPerChunk);
+            chunks[c] = ByteBuffer.allocateDirect(frames * frameSize);
+        }
+        this.freeSlots = new int[numFrames];
+        // hand out low slots first
+        for (int i = 0; i < numFrames; i++) {
+            freeSlots[i] = numFrames - 1 - i;
+        }
+        this.free = numFrames;
+    }
+
+    /** Returns the number of frames in the arena. */
+    public int getNumFrames() {
+        return numFrames;
+    }
+
+    /** Returns the number of frames not handed out. */
+    public int getFreeFrames() {
+        return free;
+    }
+
+    /** Returns the arena's size in bytes. */
+    public long getBytes() {
+        return (long) numFrames * frameSize;
+    }
+
+    /**
+     * Takes a free frame.
+     *
+     * @return its slot, or -1 if every frame is in use
+     */
+    int allocate() {
+        return free == 0 ? -1 : freeSlots[--free];
+    }
+
+    /** Gives the frame in slot back. */
+    void release(int slot) {
+        freeSlots[free++] = slot;
+    }
+
+    /**
+     * Returns a buffer over the frame in slot, with position 0 and
+     * frameSize bytes remaining.
+     */
+    ByteBuffer frame(int slot) {
+        ByteBuffer b = chunks[slot / framesPerChunk].duplicate();
+        int off = (slot % framesPerChunk) * frameSize;
+        b.limit(off + frameSize);
+        b.position(off);
+        return b.slice();
+    }
+}
@@ -0,0 +1,124 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * PageCleaner is a BufferPool's background writer. It wakes up every
+ * INTERVAL_MS, or sooner when an eviction had to pass over dirty pages, and
+ * writes dirty pages of committed transactions so that eviction finds clean
+ * victims instead of stalling. It takes the pages in the order the pool's
+ * EvictionPolicy would evict them, and pages of one file with adjacent page
+ * numbers go out in a single write.
+ * <p>
+ * The cleaner never writes more than maxPagesPerSecond pages a second, so
+ * it doesn't compete too much with queries for the disk.
+ *
+ * @see BufferPool#startCleaner
+ */
+public class PageCleaner implements Runnable {
+
+    /** How often the cleaner looks for dirty pages, in milliseconds. */
+    public static final long INTERVAL_MS = 100;
+
+    private final BufferPool pool;
+    private final int maxPagesPerSecond;
+    private final Thread thread;
+    private volatile boolean stopped;
+    // pages the cleaner may still write before it has to wait; refilled at
+    // maxPagesPerSecond, up to one second's worth
+    private double allowance;
+    private long lastRefill;
+    private boolean woken;
+    private final long started = System.nanoTime();
+    private final LongAdder pagesCleaned = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+
+    PageCleaner(BufferPool pool, int maxPagesPerSecond) {
+        if (maxPagesPerSecond <= 0) {
+            throw new IllegalArgumentException("maxPagesPerSecond must be positive");
+        }
+        this.pool = pool;
+        this.maxPagesPerSecond = maxPagesPerSecond;
+        this.allowance = maxPagesPerSecond;
+        this.lastRefill = started;
+        this.thread = new Thread(this, "simpledb-page-cleaner");
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /** Stops the cleaner and waits for the page it is writing, if any. */
+    void shutdown() {
+        stopped = true;
+        wake();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Makes the cleaner look for dirty pages now instead of at its next interval. */
+    synchronized void wake() {
+        woken = true;
+        notifyAll();
+    }
+
+    public void run() {
+        while (!stopped) {
+            int budget = refill();
+            if (budget > 0) {
+                try {
+                    int[] cleaned = pool.cleanPages(budget);
+                    allowance -= cleaned[0];
+                    pagesCleaned.add(cleaned[0]);
+                    writes.add(cleaned[1]);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            synchronized (this) {
+                try {
+                    if (!woken && !stopped) {
+                        wait(INTERVAL_MS);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                woken = false;
+            }
+        }
+    }
+
+    private int refill() {
+        long now = System.nanoTime();
+        allowance = Math.min(maxPagesPerSecond,
+                allowance + (now - lastRefill) / 1e9 * maxPagesPerSecond);
+        lastRefill = now;
+        return (int) allowance;
+    }
+
+    /** Returns the most pages the cleaner writes per second. */
+    public int getMaxPagesPerSecond() {
+        return maxPagesPerSecond;
+    }
+
+    /** Returns the number of pages the cleaner has written. */
+    public long getPagesCleaned() {
+        return pagesCleaned.sum();
+    }
+
+    /** Returns the number of writes the cleaned pages took, after coalescing. */
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    /** Returns the pages written per second since the cleaner started. */
+    public double getPagesCleanedPerSecond() {
+        double seconds = (System.nanoTime() - started) / 1e9;
+        return seconds == 0 ? 0 : pagesCleaned.sum() / seconds;
+    }
+}
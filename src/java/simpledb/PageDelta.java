@@ -0,0 +1,184 @@
+package simpledb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * PageDelta is the body of a DELTA log record: the byte ranges in which a
+ * page's after image differs from its before image, with the before and
+ * after bytes of each range. For a HeapPage in the FIXED format, a change
+ * to one tuple is the slot's byte in the header plus the slot itself.
+ * <p>
+ * The page is named by a one-byte type tag and the ints of its PageId
+ * instead of class names, so reading a delta needs no reflection. Applying
+ * the after bytes redoes the change and applying the before bytes undoes
+ * it; both set bytes to absolute values, so applying twice is harmless.
+ *
+ * @see LogFile#logWrite
+ */
+class PageDelta {
+
+    static final byte HEAP_PAGE = 1;
+    static final byte COLUMN_PAGE = 2;
+
+    // unchanged runs this short are logged along with the ranges around
+    // them; a range costs two ints, a byte of gap two bytes
+    private static final int MERGE_GAP = 4;
+
+    final byte tag;
+    final int[] pid;
+    // offset and length of each range
+    final int[] offsets;
+    final int[] lengths;
+    final byte[][] before;
+    final byte[][] after;
+
+    private PageDelta(byte tag, int[] pid, int[] offsets, int[] lengths, byte[][] before, byte[][] after) {
+        this.tag = tag;
+        this.pid = pid;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.before = before;
+        this.after = after;
+    }
+
+    /** Returns the tag of pages of p's class, or 0 if deltas don't support it. */
+    static byte tagOf(Page p) {
+        if (p.getClass() == HeapPage.class) {
+            return HEAP_PAGE;
+        }
+        if (p.getClass() == ColumnPage.class) {
+            return COLUMN_PAGE;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the delta between two images of a page, or null if it would
+     * take more than half as many bytes as the page, or the page has no tag.
+     */
+    static PageDelta between(Page beforePage, Page afterPage) {
+        byte tag = tagOf(afterPage);
+        if (tag == 0) {
+            return null;
+        }
+        byte[] b = beforePage.getPageData();
+        byte[] a = afterPage.getPageData();
+        if (b.length != a.length) {
+            return null;
+        }
+        ArrayList<int[]> ranges = new ArrayList<int[]>();
+        int changed = 0;
+        for (int i = 0; i < a.length; ) {
+            if (a[i] == b[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            // extend over differences no more than MERGE_GAP bytes apart
+            for (int j = end; j < a.length && j - end <= MERGE_GAP; j++) {
+                if (a[j] != b[j]) {
+                    end = j + 1;
+                }
+            }
+            ranges.add(new int[]{start, end - start});
+            changed += 2 * LogFile.INT_SIZE + 2 * (end - start);
+            if (changed > a.length / 2) {
+                return null;
+            }
+            i = end;
+        }
+        int n = ranges.size();
+        int[] offsets = new int[n];
+        int[] lengths = new int[n];
+        byte[][] before = new byte[n][];
+        byte[][] after = new byte[n][];
+        for (int r = 0; r < n; r++) {
+            offsets[r] = ranges.get(r)[0];
+            lengths[r] = ranges.get(r)[1];
+            before[r] = new byte[lengths[r]];
+            after[r] = new byte[lengths[r]];
+            System.arraycopy(b, offsets[r], before[r], 0, lengths[r]);
+            System.arraycopy(a, offsets[r], after[r], 0, lengths[r]);
+        }
+        return new PageDelta(tag, afterPage.getId().serialize(), offsets, lengths, before, after);
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeByte(tag);
+        for (int i : pid) {
+            out.writeInt(i);
+        }
+        out.writeInt(offsets.length);
+        for (int r = 0; r < offsets.length; r++) {
+            out.writeInt(offsets[r]);
+            out.writeInt(lengths[r]);
+            out.write(before[r]);
+            out.write(after[r]);
+        }
+    }
+
+    /**
+     * Reads a delta written by write(). Throws IOException if the bytes
+     * can't be one, such as a range running past the end of the log, so
+     * that garbage at the end of the log doesn't get far.
+     */
+    static PageDelta read(DataInput in) throws IOException {
+        byte tag = in.readByte();
+        if (tag != HEAP_PAGE && tag != COLUMN_PAGE) {
+            throw new IOException("not a page delta");
+        }
+        int[] pid = new int[tag == COLUMN_PAGE ? 3 : 2];
+        for (int i = 0; i < pid.length; i++) {
+            pid[i] = in.readInt();
+        }
+        int n = LogFile.readLength(in, 2 * LogFile.INT_SIZE);
+        int[] offsets = new int[n];
+        int[] lengths = new int[n];
+        byte[][] before = new byte[n][];
+        byte[][] after = new byte[n][];
+        for (int r = 0; r < n; r++) {
+            offsets[r] = in.readInt();
+            if (offsets[r] < 0) {
+                throw new IOException("not a page delta");
+            }
+            lengths[r] = LogFile.readLength(in, 2);
+            before[r] = new byte[lengths[r]];
+            after[r] = new byte[lengths[r]];
+            in.readFully(before[r]);
+            in.readFully(after[r]);
+        }
+        return new PageDelta(tag, pid, offsets, lengths, before, after);
+    }
+
+    PageId pageId() {
+        return pageIdOf(pid);
+    }
+
+    /** Returns the PageId that serializes to the given ints. */
+    static PageId pageIdOf(int[] pid) {
+        if (pid.length == 3) {
+            return new ColumnPageId(pid[0], pid[1], pid[2]);
+        }
+        return new HeapPageId(pid[0], pid[1]);
+    }
+
+    /** Writes the after bytes (redo) or the before bytes (undo) into page. */
+    void apply(byte[] page, boolean redo) {
+        byte[][] images = redo ? after : before;
+        for (int r = 0; r < offsets.length; r++) {
+            System.arraycopy(images[r], 0, page, offsets[r], lengths[r]);
+        }
+    }
+
+    /** Builds a page of this delta's type and id from the given bytes. */
+    Page toPage(byte[] data) throws IOException {
+        if (tag == COLUMN_PAGE) {
+            return new ColumnPage((ColumnPageId) pageId(), data);
+        }
+        return new HeapPage((HeapPageId) pageId(), data);
+    }
+}
@@ -14,6 +14,9 @@ public class SeqScan implements OpIterator {
     private DbFileIterator dbFileIterator;
     private TransactionId tid;
     private String tableAlias;
+    private final LinkedHashSet<Predicate> pushedPredicates = new LinkedHashSet<Predicate>();
+    // null means every column is needed
+    private int[] neededColumns = null;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -74,6 +77,31 @@ public class SeqScan implements OpIterator {
         // some code goes here
         dbFile = Database.getCatalog().getDatabaseFile(tableid);
         this.tableAlias = tableAlias;
+        pushedPredicates.clear();
+        neededColumns = null;
+    }
+
+    /**
+     * Lets the scan drop tuples that fail p before they are materialized.
+     * This is only an optimization: the caller must still apply p itself,
+     * and scans over files that can't evaluate predicates ignore it. Takes
+     * effect the next time the scan is opened.
+     */
+    public void pushPredicate(Predicate p) {
+        pushedPredicates.add(p);
+    }
+
+    /**
+     * Tells the scan that its consumers only look at the given columns
+     * (indexes into the table's TupleDesc). Files that store columns
+     * separately then skip reading the others, and leave those fields of
+     * the returned tuples null; other files ignore it. Takes effect the next
+     * time the scan is opened.
+     *
+     * @see ColumnFile#iterator(TransactionId, int[])
+     */
+    public void setNeededColumns(int[] columns) {
+        neededColumns = columns == null ? null : columns.clone();
     }
 
     public SeqScan(TransactionId tid, int tableId) {
@@ -82,7 +110,13 @@ public class SeqScan implements OpIterator {
 
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
-        dbFileIterator = dbFile.iterator(tid);
+        if (dbFile instanceof HeapFile && !pushedPredicates.isEmpty()) {
+            dbFileIterator = ((HeapFile) dbFile).iterator(tid, new ArrayList<Predicate>(pushedPredicates));
+        } else if (dbFile instanceof ColumnFile && neededColumns != null) {
+            dbFileIterator = ((ColumnFile) dbFile).iterator(tid, neededColumns);
+        } else {
+            dbFileIterator = dbFile.iterator(tid);
+        }
         dbFileIterator.open();
     }
 
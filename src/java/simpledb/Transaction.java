@@ -43,20 +43,10 @@ public class Transaction {
     public void transactionComplete(boolean abort) throws IOException {
 
         if (started) {
-            //write commit / abort records
-            if (abort) {
-                Database.getLogFile().logAbort(tid); //does rollback too
-            } else {
-                //write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);
-                Database.getLogFile().logCommit(tid);
-            }
-
-            try {
-                Database.getBufferPool().transactionComplete(tid, !abort); // release locks
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            // the buffer pool writes the commit / abort records: it logs
+            // the pages along with the COMMIT record, and rolls back from
+            // the log on abort
+            Database.getBufferPool().transactionComplete(tid, !abort); // release locks
 
             //setting this here means we could possibly write multiple abort records -- OK?
             started = false;
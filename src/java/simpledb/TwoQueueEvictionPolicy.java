@@ -0,0 +1,113 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Stream;
+
+/**
+ * 2Q (Johnson and Shasha), which keeps a sequential scan from flushing the
+ * pages that are used over and over. A page read for the first time goes to
+ * the FIFO queue A1in. When it falls out of A1in its id is remembered for a
+ * while in the ghost queue A1out; only a page that is read again while its
+ * id is in A1out goes to Am, the main queue, which is LRU. Victims come from
+ * A1in while it is over its share of the pool, and from Am otherwise.
+ * <p>
+ * As in LruEvictionPolicy, a hit on an Am page only queues it, and it moves
+ * to the back of Am before the next victims are picked.
+ */
+public class TwoQueueEvictionPolicy implements EvictionPolicy {
+
+    private static final class Entry {
+        final PageId pid;
+        // true once the page has been promoted to Am
+        final boolean hot;
+        // true while the page is in hits
+        volatile boolean queued;
+
+        Entry(PageId pid, boolean hot) {
+            this.pid = pid;
+            this.hot = hot;
+        }
+    }
+
+    // A1in's target size and A1out's size, as fractions of the pool, as
+    // suggested in the paper
+    private static final double IN_SHARE = 0.25;
+    private static final double OUT_SHARE = 0.5;
+
+    private final int maxIn;
+    private final int maxOut;
+    private final ConcurrentHashMap<PageId, Entry> entries = new ConcurrentHashMap<>();
+    // the pages of A1in, oldest first
+    private final LinkedHashSet<PageId> in = new LinkedHashSet<PageId>();
+    // ids of pages recently dropped from A1in, oldest first
+    private final LinkedHashSet<PageId> out = new LinkedHashSet<PageId>();
+    // the pages of Am, least recently used first
+    private final LinkedHashSet<PageId> am = new LinkedHashSet<PageId>();
+    // Am pages hit since the last drain, in hit order
+    private final ConcurrentLinkedQueue<Entry> hits = new ConcurrentLinkedQueue<Entry>();
+
+    /**
+     * @param capacity the number of pages in the pool
+     */
+    public TwoQueueEvictionPolicy(int capacity) {
+        this.maxIn = Math.max(1, (int) (capacity * IN_SHARE));
+        this.maxOut = Math.max(1, (int) (capacity * OUT_SHARE));
+    }
+
+    public void admitted(PageId pid) {
+        if (entries.containsKey(pid)) {
+            return;
+        }
+        if (out.remove(pid)) {
+            entries.put(pid, new Entry(pid, true));
+            am.add(pid);
+        } else {
+            entries.put(pid, new Entry(pid, false));
+            in.add(pid);
+        }
+    }
+
+    public void accessed(PageId pid) {
+        // hits in A1in don't count: they are usually the same scan
+        // touching the page again
+        Entry e = entries.get(pid);
+        if (e != null && e.hot && !e.queued) {
+            e.queued = true;
+            hits.add(e);
+        }
+    }
+
+    public void removed(PageId pid) {
+        Entry e = entries.remove(pid);
+        if (e == null) {
+            return;
+        }
+        if (e.hot) {
+            am.remove(pid);
+            return;
+        }
+        in.remove(pid);
+        out.add(pid);
+        if (out.size() > maxOut) {
+            Iterator<PageId> oldest = out.iterator();
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    public Iterator<PageId> victims() {
+        for (Entry e; (e = hits.poll()) != null; ) {
+            e.queued = false;
+            // to the back, unless it has been removed since
+            if (am.remove(e.pid)) {
+                am.add(e.pid);
+            }
+        }
+        if (in.size() > maxIn || am.isEmpty()) {
+            return Stream.concat(in.stream(), am.stream()).iterator();
+        }
+        return Stream.concat(am.stream(), in.stream()).iterator();
+    }
+}
@@ -2,6 +2,8 @@ package simpledb;
 
 import java.text.ParseException;
 import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
 /**
  * Class representing a type in SimpleDB.
@@ -24,6 +26,41 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(ByteBuffer buf) throws ParseException {
+            try {
+                return new IntField(buf.getInt());
+            } catch (BufferUnderflowException e) {
+                throw new ParseException("couldn't parse", 0);
+            }
+        }
+
+        @Override
+        public int getMinCompactLen() {
+            return 4;
+        }
+
+        @Override
+        public int getCompactLen(Field f) {
+            return 4;
+        }
+
+        @Override
+        public int skipCompact(ByteBuffer buf) {
+            buf.position(buf.position() + 4);
+            return 4;
+        }
+
+        @Override
+        public void serializeCompact(Field f, ByteBuffer buf) {
+            buf.putInt(((IntField) f).getValue());
+        }
+
+        @Override
+        public Field parseCompact(ByteBuffer buf) throws ParseException {
+            return parse(buf);
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -42,6 +79,59 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(ByteBuffer buf) throws ParseException {
+            try {
+                int strLen = buf.getInt();
+                byte bs[] = new byte[strLen];
+                buf.get(bs);
+                buf.position(buf.position() + STRING_LEN - strLen);
+                return new StringField(new String(bs), STRING_LEN);
+            } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+                throw new ParseException("couldn't parse", 0);
+            }
+        }
+
+        @Override
+        public int getMinCompactLen() {
+            return 1;
+        }
+
+        @Override
+        public int getCompactLen(Field f) {
+            return 1 + Math.min(((StringField) f).getValue().length(), STRING_LEN);
+        }
+
+        @Override
+        public int skipCompact(ByteBuffer buf) {
+            int strLen = buf.get() & 0xff;
+            buf.position(buf.position() + strLen);
+            return 1 + strLen;
+        }
+
+        @Override
+        public void serializeCompact(Field f, ByteBuffer buf) {
+            // one byte per char, like serialize
+            String s = ((StringField) f).getValue();
+            int strLen = Math.min(s.length(), STRING_LEN);
+            buf.put((byte) strLen);
+            for (int i = 0; i < strLen; i++) {
+                buf.put((byte) s.charAt(i));
+            }
+        }
+
+        @Override
+        public Field parseCompact(ByteBuffer buf) throws ParseException {
+            try {
+                int strLen = buf.get() & 0xff;
+                byte bs[] = new byte[strLen];
+                buf.get(bs);
+                return new StringField(new String(bs), STRING_LEN);
+            } catch (BufferUnderflowException e) {
+                throw new ParseException("couldn't parse", 0);
+            }
+        }
     };
     
     public static final int STRING_LEN = 128;
@@ -60,4 +150,46 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return a Field object of the same type as this object that has contents
+   *   read from the current position of the specified buffer. The position
+   *   is advanced past the field.
+   * @param buf The buffer to read from
+   * @throws ParseException if the buffer does not hold a field of this type
+   */
+    public abstract Field parse(ByteBuffer buf) throws ParseException;
+
+  /**
+   * The compact encoding is used by HeapPages in the COMPACT format. It
+   * drops the padding: strings are stored as a one-byte length followed by
+   * their characters, integers as their four bytes.
+   *
+   * @return the smallest number of bytes a field of this type takes in the
+   *   compact encoding.
+   * @see HeapFile.PageFormat#COMPACT
+   */
+    public abstract int getMinCompactLen();
+
+  /**
+   * @return the number of bytes f takes in the compact encoding.
+   */
+    public abstract int getCompactLen(Field f);
+
+  /**
+   * Advances the position of buf past one compactly encoded field.
+   * @return the number of bytes skipped
+   */
+    public abstract int skipCompact(ByteBuffer buf);
+
+  /**
+   * Writes f to buf in the compact encoding.
+   */
+    public abstract void serializeCompact(Field f, ByteBuffer buf);
+
+  /**
+   * @return a Field object of this type read from the compact encoding at
+   *   the current position of buf. The position is advanced past the field.
+   */
+    public abstract Field parseCompact(ByteBuffer buf) throws ParseException;
+
 }
@@ -0,0 +1,70 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * WaitForGraph has an edge from each blocked transaction to each
+ * transaction it waits for. A deadlock is a cycle, and the only edges that
+ * can close one are those of the transaction that just blocked (or whose
+ * blockers just changed), so cycles are looked for from that transaction
+ * only, when its edges are set.
+ * <p>
+ * Not thread safe; the LockManager calls it under its graph latch.
+ */
+class WaitForGraph {
+
+    private final HashMap<TransactionId, Set<TransactionId>> edges = new HashMap<TransactionId, Set<TransactionId>>();
+
+    /** Sets the transactions tid waits for, replacing any it waited for before. */
+    void setEdges(TransactionId tid, Set<TransactionId> blockers) {
+        if (blockers.isEmpty()) {
+            edges.remove(tid);
+        } else {
+            edges.put(tid, blockers);
+        }
+    }
+
+    /** Removes tid's edges, once it waits for nothing. */
+    void remove(TransactionId tid) {
+        edges.remove(tid);
+    }
+
+    Set<TransactionId> blockers(TransactionId tid) {
+        Set<TransactionId> blockers = edges.get(tid);
+        return blockers == null ? Collections.<TransactionId>emptySet() : blockers;
+    }
+
+    /**
+     * Returns the transactions on a cycle through tid, starting with tid,
+     * or null if there is none.
+     */
+    List<TransactionId> cycleThrough(TransactionId tid) {
+        // depth first, remembering how each transaction was reached
+        HashMap<TransactionId, TransactionId> reachedFrom = new HashMap<TransactionId, TransactionId>();
+        ArrayDeque<TransactionId> stack = new ArrayDeque<TransactionId>();
+        stack.push(tid);
+        while (!stack.isEmpty()) {
+            TransactionId t = stack.pop();
+            for (TransactionId next : blockers(t)) {
+                if (next.equals(tid)) {
+                    ArrayList<TransactionId> cycle = new ArrayList<TransactionId>();
+                    for (TransactionId c = t; c != null; c = reachedFrom.get(c)) {
+                        cycle.add(c);
+                    }
+                    Collections.reverse(cycle);
+                    return cycle;
+                }
+                if (!reachedFrom.containsKey(next)) {
+                    reachedFrom.put(next, t);
+                    stack.push(next);
+                }
+            }
+        }
+        return null;
+    }
+}
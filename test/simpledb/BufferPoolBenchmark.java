@@ -0,0 +1,90 @@
+package simpledb;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures buffer pool hit throughput against the number of threads. A
+ * table that fits in the pool is read once, then each thread fetches random
+ * pages of it through BufferPool.getPage for a fixed time, under a
+ * transaction of its own. This is not a unit test; run it by hand after
+ * "ant testcompile":
+ * <pre>
+ *   java -cp bin/src:bin/test simpledb.BufferPoolBenchmark [maxThreads] [seconds] [pages]
+ * </pre>
+ * Thread counts double from 1 up to maxThreads.
+ */
+public class BufferPoolBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 3;
+        int pages = args.length > 2 ? Integer.parseInt(args[2]) : 40;
+
+        File f = File.createTempFile("poolbench", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + ".fsm").deleteOnExit();
+        HeapFile hf = Utility.openHeapFile(2, f);
+        TransactionId loader = new TransactionId();
+        int perPage = HeapPage.getNumTuples(hf.getTupleDesc());
+        for (int i = 0; i < pages * perPage; i++) {
+            hf.insertTuple(loader, Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(loader);
+        Database.resetBufferPool(Math.max(BufferPool.DEFAULT_PAGES, pages));
+
+        double base = 0;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            double rate = run(hf.getId(), pages, threads, seconds);
+            if (threads == 1) {
+                base = rate;
+            }
+            System.out.printf("%3d threads  %12.0f hits/sec  %5.2fx%n", threads, rate, rate / base);
+        }
+    }
+
+    private static double run(int tableId, int pages, int threads, double seconds) throws Exception {
+        LongAdder hits = new LongAdder();
+        AtomicBoolean stop = new AtomicBoolean();
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                TransactionId tid = new TransactionId();
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                try {
+                    // take every read lock once, so the timed loop only measures the pool
+                    for (int p = 0; p < pages; p++) {
+                        Database.getBufferPool().getPage(tid, new HeapPageId(tableId, p), Permissions.READ_ONLY);
+                    }
+                    ready.countDown();
+                    go.await();
+                    long n = 0;
+                    while (!stop.get()) {
+                        Database.getBufferPool().getPage(tid, new HeapPageId(tableId, rnd.nextInt(pages)),
+                                Permissions.READ_ONLY);
+                        n++;
+                    }
+                    hits.add(n);
+                    Database.getBufferPool().transactionComplete(tid);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            workers[t].start();
+        }
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+        Thread.sleep((long) (seconds * 1000));
+        stop.set(true);
+        for (Thread w : workers) {
+            w.join();
+        }
+        return hits.sum() / ((System.nanoTime() - start) / 1e9);
+    }
+}
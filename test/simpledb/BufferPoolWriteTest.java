@@ -4,7 +4,13 @@ import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.After;
 import org.junit.Before;
@@ -48,6 +54,31 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	}
     }
     
+    // class whose read of page 0 holds its frame until released, then fails
+    class StuckHeapFile extends HeapFile {
+
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        public StuckHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        HeapPage readPageInto(PageId pid, ByteBuffer frame) {
+            if (pid.getPageNumber() != 0) {
+                return super.readPageInto(pid, frame);
+            }
+            reading.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        }
+    }
+
     /**
      * Set up initial resources for each unit test.
      */
@@ -133,6 +164,39 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    /**
+     * A read that finds every frame of an off-heap pool held by reads in
+     * progress waits for one of them to finish.
+     */
+    @Test public void waitForArenaFrame() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        StuckHeapFile stuck = new StuckHeapFile(table.getFile(), table.getTupleDesc());
+        Database.getCatalog().addTable(stuck, SystemTestUtil.getUUID());
+        BufferPool pool = Database.resetBufferPool(BufferPool.offHeap(BufferPool.getPageSize()));
+
+        ExecutorService threads = Executors.newFixedThreadPool(2);
+        try {
+            Future<Page> first = threads.submit(() ->
+                    pool.getPage(new TransactionId(), new HeapPageId(stuck.getId(), 0), Permissions.READ_ONLY));
+            stuck.reading.await();
+            Future<Page> second = threads.submit(() ->
+                    pool.getPage(new TransactionId(), new HeapPageId(stuck.getId(), 1), Permissions.READ_ONLY));
+            Thread.sleep(100);
+            assertFalse(second.isDone());
+
+            stuck.release.countDown();
+            assertEquals(1, second.get(5, TimeUnit.SECONDS).getId().getPageNumber());
+            try {
+                first.get(5, TimeUnit.SECONDS);
+                fail("expected the stuck read to fail");
+            } catch (java.util.concurrent.ExecutionException e) {
+                assertTrue(e.getCause() instanceof DbException);
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
     /**
      * JUnit suite target
      */
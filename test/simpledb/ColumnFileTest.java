@@ -0,0 +1,128 @@
+package simpledb;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ColumnFileTest {
+    private static final int ROWS = 2000;
+
+    private File base;
+    private TupleDesc td;
+    private ColumnFile cf;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        base = File.createTempFile("columns", ".dat");
+        base.deleteOnExit();
+        td = new TupleDesc(new Type[]{Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE},
+                new String[]{"id", "name", "score"});
+        cf = new ColumnFile(base, td);
+        for (int c = 0; c < td.numFields(); c++) {
+            cf.getColumnFile(c).deleteOnExit();
+        }
+        Database.getCatalog().addTable(cf, "columns");
+
+        // insert in small transactions; the string column needs a page per 31 rows
+        for (int i = 0; i < ROWS; i += 100) {
+            TransactionId loader = new TransactionId();
+            for (int j = i; j < i + 100; j++) {
+                Database.getBufferPool().insertTuple(loader, cf.getId(), row(j));
+            }
+            Database.getBufferPool().transactionComplete(loader);
+        }
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private Tuple row(int i) {
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(i));
+        t.setField(1, new StringField("name" + i, Type.STRING_LEN));
+        t.setField(2, new IntField(i * 10));
+        return t;
+    }
+
+    /**
+     * Each column has its own page density.
+     */
+    @Test public void columnPages() {
+        assertEquals(992, ColumnPage.getNumSlots(Type.INT_TYPE));
+        assertEquals(31, ColumnPage.getNumSlots(Type.STRING_TYPE));
+        assertEquals(3, cf.numPages(0));
+        assertEquals((ROWS + 30) / 31, cf.numPages(1));
+    }
+
+    @Test public void scanAllColumns() throws Exception {
+        DbFileIterator it = cf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertTrue(TestUtil.compareTuples(row(count), t));
+            count++;
+        }
+        it.close();
+        assertEquals(ROWS, count);
+    }
+
+    /**
+     * A scan over a subset of the columns leaves the others null and never
+     * asks for their pages.
+     */
+    @Test public void scanSomeColumns() throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        DbFileIterator it = cf.iterator(tid, new int[]{2});
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertFalse(Database.getLockManager().txRelatedPages.get(tid).contains(new ColumnPageId(cf.getId(), 1, 0)));
+            assertNull(t.getField(0));
+            assertNull(t.getField(1));
+            assertEquals(new IntField(count * 10), t.getField(2));
+            count++;
+        }
+        it.close();
+        assertEquals(ROWS, count);
+    }
+
+    @Test public void deleteAndReopen() throws Exception {
+        DbFileIterator it = cf.iterator(tid);
+        it.open();
+        Database.getBufferPool().deleteTuple(tid, it.next());
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        ColumnFile reopened = new ColumnFile(base, td);
+        cf.close();
+        Database.getCatalog().addTable(reopened, "columns");
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        it = reopened.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            assertEquals(new IntField(count + 1), it.next().getField(0));
+            count++;
+        }
+        it.close();
+        assertEquals(ROWS - 1, count);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ColumnFileTest.class);
+    }
+}
@@ -0,0 +1,84 @@
+package simpledb;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures commit throughput against the number of client threads, with
+ * group commit off and on. Each thread has a table of its own, so the
+ * threads never wait for each other's locks; a transaction inserts one
+ * tuple and commits. This is not a unit test; run it by hand after
+ * "ant testcompile":
+ * <pre>
+ *   java -cp bin/src:bin/test simpledb.CommitBenchmark [maxThreads] [seconds] [waitMicros]
+ * </pre>
+ * Thread counts double from 1 up to maxThreads. waitMicros is the group
+ * commit wait; see LogFile.setGroupCommitWaitMicros.
+ */
+public class CommitBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 2;
+        long waitMicros = args.length > 2 ? Long.parseLong(args[2]) : 0;
+
+        HeapFile[] tables = new HeapFile[maxThreads];
+        for (int t = 0; t < maxThreads; t++) {
+            File f = File.createTempFile("commitbench", ".dat");
+            f.deleteOnExit();
+            new File(f.getPath() + ".fsm").deleteOnExit();
+            tables[t] = Utility.openHeapFile(2, f);
+        }
+        Database.resetBufferPool(Math.max(BufferPool.DEFAULT_PAGES, 4 * maxThreads));
+        LogFile log = Database.getLogFile();
+        log.setGroupCommitWaitMicros(waitMicros);
+
+        System.out.printf("%7s  %14s  %14s  %16s%n", "threads", "commits/sec", "grouped", "commits/force");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            log.setGroupCommit(false);
+            double solo = run(tables, threads, seconds);
+            log.setGroupCommit(true);
+            long commits = log.getCommits();
+            long forces = log.getForces();
+            double grouped = run(tables, threads, seconds);
+            double perForce = (double) (log.getCommits() - commits) / Math.max(1, log.getForces() - forces);
+            System.out.printf("%7d  %14.0f  %14.0f  %16.2f%n", threads, solo, grouped, perForce);
+        }
+    }
+
+    private static double run(HeapFile[] tables, int threads, double seconds) throws Exception {
+        LongAdder commits = new LongAdder();
+        AtomicBoolean stop = new AtomicBoolean();
+        CountDownLatch go = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            HeapFile table = tables[t];
+            workers[t] = new Thread(() -> {
+                try {
+                    go.await();
+                    int i = 0;
+                    while (!stop.get()) {
+                        Transaction tx = new Transaction();
+                        tx.start();
+                        Database.getBufferPool().insertTuple(tx.getId(), table.getId(), Utility.getHeapTuple(i++, 2));
+                        tx.commit();
+                        commits.increment();
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            workers[t].start();
+        }
+        long start = System.nanoTime();
+        go.countDown();
+        Thread.sleep((long) (seconds * 1000));
+        stop.set(true);
+        for (Thread w : workers) {
+            w.join();
+        }
+        return commits.sum() / ((System.nanoTime() - start) / 1e9);
+    }
+}
@@ -0,0 +1,218 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Crash injection for LogFile.recover. A crash keeps the data file as the
+ * pool left it and the log up to its durable LSN, plus a random part of
+ * what was appended after it, as if the process died while writing the
+ * log; everything in memory is lost. Log segments are two pages long, so
+ * UPDATE records run across segments and checkpoints reuse them.
+ */
+public class CrashRecoveryTest {
+    private static final int COLUMNS = 2;
+    private static final int POOL_PAGES = 4;
+    private static final int SEGMENT_SIZE = 8192;
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private File file;
+    private HeapFile f;
+    private BufferPool pool;
+
+    @Before public void setUp() throws Exception {
+        // a new database starts with an empty log
+        for (File segment : Database.getLogFile().logFile.listFiles()) {
+            segment.delete();
+        }
+        Database.reset();
+        Database.getLogFile().setSegmentSize(SEGMENT_SIZE);
+        tuples = new ArrayList<ArrayList<Integer>>();
+        f = SystemTestUtil.createRandomHeapFile(COLUMNS, 504 * 8, 1000, null, tuples);
+        file = f.getFile();
+        pool = Database.resetBufferPool(POOL_PAGES);
+        pool.setStealNoForce(true);
+    }
+
+    /**
+     * Deletes a few tuples from each of up to maxPages random pages and
+     * inserts as many new ones, in transaction t. The tuples that are
+     * gone and the new ones are added to deleted and inserted.
+     */
+    private void update(Transaction t, Random rand, int maxPages,
+            ArrayList<ArrayList<Integer>> deleted, ArrayList<ArrayList<Integer>> inserted) throws Exception {
+        int pages = 1 + rand.nextInt(maxPages);
+        for (int i = 0; i < pages; i++) {
+            HeapPageId pid = new HeapPageId(f.getId(), rand.nextInt(f.numPages()));
+            HeapPage page = (HeapPage) pool.getPage(t.getId(), pid, Permissions.READ_WRITE);
+            ArrayList<Tuple> victims = new ArrayList<Tuple>();
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext() && victims.size() < 3) {
+                victims.add(it.next());
+            }
+            for (Tuple victim : victims) {
+                pool.deleteTuple(t.getId(), victim);
+                deleted.add(SystemTestUtil.tupleToList(victim));
+                int[] values = {rand.nextInt(1000), rand.nextInt(1000)};
+                pool.insertTuple(t.getId(), f.getId(), Utility.getHeapTuple(values));
+                inserted.add(SystemTestUtil.tupleToList(Utility.getHeapTuple(values)));
+            }
+        }
+    }
+
+    /** Runs a transaction that commits or aborts, and keeps tuples up to date. */
+    private void finish(Random rand, int maxPages, boolean commit) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        ArrayList<ArrayList<Integer>> deleted = new ArrayList<ArrayList<Integer>>();
+        ArrayList<ArrayList<Integer>> inserted = new ArrayList<ArrayList<Integer>>();
+        update(t, rand, maxPages, deleted, inserted);
+        if (commit) {
+            t.commit();
+            // a page can come up twice, and lose tuples inserted the first time
+            tuples.addAll(inserted);
+            for (ArrayList<Integer> tup : deleted) {
+                tuples.remove(tup);
+            }
+        } else {
+            t.abort();
+        }
+    }
+
+    /**
+     * Crashes, cutting the log at a random offset past its durable part,
+     * then reopens the table in a fresh Database and recovers it.
+     */
+    private void crashAndRecover(Random rand, int threads) throws Exception {
+        LogFile log = Database.getLogFile();
+        log.drain();
+        long durable = log.durableLsn();
+        long end = log.getEndLsn();
+        long cut = durable + (long) (rand.nextDouble() * (end - durable + 1));
+        log.cutAt(Math.min(cut, end));
+
+        Database.reset();
+        f = Utility.openHeapFile(COLUMNS, file);
+        pool = Database.resetBufferPool(POOL_PAGES);
+        Database.getLogFile().setRecoveryThreads(threads);
+        Database.getLogFile().recover();
+    }
+
+    /** Committed pages that NO FORCE never wrote are redone. */
+    @Test public void redoCommitted() throws Exception {
+        Random rand = new Random(1);
+        for (int i = 0; i < 3; i++) {
+            finish(rand, 1, true);
+        }
+        crashAndRecover(rand, 2);
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /** Pages a running transaction had stolen are undone. */
+    @Test public void undoStolen() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        update(t, new Random(2), f.numPages(), new ArrayList<ArrayList<Integer>>(),
+                new ArrayList<ArrayList<Integer>>());
+        assertTrue(pool.getPagesWritten() > 0);
+        crashAndRecover(new Random(2), 2);
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /**
+     * A checkpoint writes no pages; the updates in its dirty page table
+     * are redone from before it.
+     */
+    @Test public void fuzzyCheckpoint() throws Exception {
+        Random rand = new Random(4);
+        for (int i = 0; i < 3; i++) {
+            finish(rand, 1, true);
+        }
+        pool.resetStats();
+        Database.getLogFile().logCheckpoint();
+        assertEquals(0, pool.getPagesWritten());
+        assertFalse(pool.getDirtyPageTable().isEmpty());
+        finish(rand, 1, true);
+        crashAndRecover(rand, 2);
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /**
+     * A record cut short at the end of the log is dropped, and the log
+     * goes on after the last whole record.
+     */
+    @Test public void tornRecord() throws Exception {
+        Random rand = new Random(3);
+        finish(rand, 1, true);
+        LogFile log = Database.getLogFile();
+        log.force();
+        long length = log.getEndLsn();
+        Transaction t = new Transaction();
+        t.start();
+        log.drain();
+        assertTrue(log.getEndLsn() > length);
+        log.cutAt(length + 5);
+
+        Database.reset();
+        f = Utility.openHeapFile(COLUMNS, file);
+        pool = Database.resetBufferPool(POOL_PAGES);
+        Database.getLogFile().recover();
+        assertEquals(length, Database.getLogFile().getEndLsn());
+        SystemTestUtil.matchTuples(f, tuples);
+
+        finish(rand, 1, true);
+        crashAndRecover(rand, 1);
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /**
+     * Random workloads, under STEAL/NO FORCE and under the default NO
+     * STEAL/FORCE, crash in the middle of a transaction or between two,
+     * and are recovered with one to four redo threads. The recovered log
+     * takes new transactions and survives another crash.
+     */
+    @Test public void randomCrashes() throws Exception {
+        for (int seed = 0; seed < 20; seed++) {
+            setUp();
+            Random rand = new Random(seed);
+            boolean steal = seed % 4 != 3;
+            pool.setStealNoForce(steal);
+            int maxPages = steal ? f.numPages() : 2;
+            int transactions = rand.nextInt(10);
+            for (int i = 0; i < transactions; i++) {
+                finish(rand, maxPages, rand.nextInt(4) != 0);
+                if (rand.nextInt(5) == 0) {
+                    Database.getLogFile().logCheckpoint();
+                }
+            }
+            if (rand.nextBoolean()) {
+                Transaction loser = new Transaction();
+                loser.start();
+                update(loser, rand, maxPages, new ArrayList<ArrayList<Integer>>(),
+                        new ArrayList<ArrayList<Integer>>());
+            }
+            crashAndRecover(rand, 1 + seed % 4);
+            SystemTestUtil.matchTuples(f, tuples);
+
+            pool.setStealNoForce(steal);
+            finish(rand, maxPages, true);
+            crashAndRecover(rand, 1);
+            SystemTestUtil.matchTuples(f, tuples);
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CrashRecoveryTest.class);
+    }
+}
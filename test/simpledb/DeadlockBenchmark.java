@@ -0,0 +1,82 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures deadlock detection in the LockManager under each victim policy.
+ * Threads run transactions that lock a few of a small set of hot pages in
+ * random order, some to read and some to write, hold them briefly, and
+ * release them; a transaction chosen as a victim releases what it holds
+ * and counts as aborted. This is not a unit test; run it by hand after
+ * "ant testcompile":
+ * <pre>
+ *   java -cp bin/src:bin/test simpledb.DeadlockBenchmark [threads] [hotPages] [seconds]
+ * </pre>
+ */
+public class DeadlockBenchmark {
+
+    private static final int PAGES_PER_TRANSACTION = 3;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int hotPages = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        System.out.printf("%-13s  %9s  %9s  %12s  %10s%n",
+                "policy", "commits/s", "victims/s", "detect us", "search us");
+        for (LockManager.VictimPolicy policy : LockManager.VictimPolicy.values()) {
+            run(policy, threads, hotPages, seconds);
+        }
+    }
+
+    private static void run(LockManager.VictimPolicy policy, int threads, int hotPages, int seconds)
+            throws InterruptedException {
+        final LockManager lm = new LockManager();
+        lm.setVictimPolicy(policy);
+        final AtomicLong commits = new AtomicLong();
+        final long end = System.nanoTime() + seconds * 1000000000L;
+
+        ArrayList<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            final Random rand = new Random(i);
+            workers.add(new Thread(() -> {
+                ArrayList<PageId> pages = new ArrayList<PageId>();
+                for (int p = 0; p < hotPages; p++) {
+                    pages.add(new HeapPageId(1, p));
+                }
+                while (System.nanoTime() < end) {
+                    TransactionId tid = new TransactionId();
+                    Collections.shuffle(pages, rand);
+                    try {
+                        for (int p = 0; p < PAGES_PER_TRANSACTION; p++) {
+                            Permissions perm = rand.nextInt(3) == 0 ? Permissions.READ_ONLY : Permissions.READ_WRITE;
+                            lm.acquire(tid, pages.get(p), perm);
+                            LockSupport.parkNanos(50000);
+                        }
+                        commits.incrementAndGet();
+                    } catch (TransactionAbortedException e) {
+                        // counted by the lock manager
+                    } finally {
+                        lm.releaseAll(tid);
+                    }
+                }
+            }));
+        }
+        for (Thread t : workers) {
+            t.start();
+        }
+        for (Thread t : workers) {
+            t.join();
+        }
+
+        long victims = lm.getVictims();
+        System.out.printf("%-13s  %9.0f  %9.0f  %12.1f  %10.2f%n", policy,
+                commits.get() / (double) seconds, victims / (double) seconds,
+                victims == 0 ? 0 : lm.getDetectionNanos() / 1e3 / victims,
+                lm.getSearches() == 0 ? 0 : lm.getSearchNanos() / 1e3 / lm.getSearches());
+    }
+}
@@ -0,0 +1,125 @@
+package simpledb;
+
+import java.io.File;
+import java.util.Iterator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class EvictionPolicyTest {
+    private static final int POOL_PAGES = 20;
+    private static final int TABLE_PAGES = 60;
+    private static final int HOT_PAGES = 5;
+
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        File f = File.createTempFile("eviction", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + ".fsm").deleteOnExit();
+        hf = Utility.openHeapFile(2, f);
+        java.util.ArrayList<Tuple> tuples = new java.util.ArrayList<Tuple>();
+        for (int i = 0; i < TABLE_PAGES * HeapPage.getNumTuples(hf.getTupleDesc()); i++) {
+            tuples.add(Utility.getHeapTuple(i, 2));
+        }
+        TransactionId loader = new TransactionId();
+        hf.bulkAppend(loader, tuples.iterator());
+        Database.getBufferPool().transactionComplete(loader);
+    }
+
+    private PageId page(int pgNo) {
+        return new HeapPageId(hf.getId(), pgNo);
+    }
+
+    @Test public void lruOrder() {
+        EvictionPolicy lru = new LruEvictionPolicy();
+        for (int i = 0; i < 4; i++) {
+            lru.admitted(page(i));
+        }
+        lru.accessed(page(0));
+        Iterator<PageId> victims = lru.victims();
+        assertEquals(page(1), victims.next());
+        assertEquals(page(2), victims.next());
+        assertEquals(page(3), victims.next());
+        assertEquals(page(0), victims.next());
+        assertFalse(victims.hasNext());
+    }
+
+    /**
+     * CLOCK gives a referenced page a second chance, and skips it once more
+     * after another hit.
+     */
+    @Test public void clockSecondChance() {
+        EvictionPolicy clock = new ClockEvictionPolicy();
+        for (int i = 0; i < 4; i++) {
+            clock.admitted(page(i));
+        }
+        // every bit starts set; the first sweep clears them all
+        assertEquals(page(0), clock.victims().next());
+        clock.removed(page(0));
+        clock.accessed(page(1));
+        assertEquals(page(2), clock.victims().next());
+        clock.removed(page(2));
+        assertEquals(page(3), clock.victims().next());
+    }
+
+    /**
+     * A one-off scan of more pages than the pool holds flushes a hot set of
+     * pages out of an LRU pool, but not out of a 2Q one.
+     */
+    @Test public void twoQueueResistsScans() throws Exception {
+        assertEquals(0, hotHitsAfterScan(new LruEvictionPolicy()));
+        assertEquals(HOT_PAGES, hotHitsAfterScan(new TwoQueueEvictionPolicy(POOL_PAGES)));
+    }
+
+    private long hotHitsAfterScan(EvictionPolicy policy) throws Exception {
+        BufferPool pool = Database.resetBufferPool(POOL_PAGES, policy);
+        TransactionId tid = new TransactionId();
+        // the hot pages are used between every few pages of other work
+        for (int i = HOT_PAGES; i < TABLE_PAGES; i++) {
+            pool.getPage(tid, page(i), Permissions.READ_ONLY);
+            if (i % HOT_PAGES == 0) {
+                for (int h = 0; h < HOT_PAGES; h++) {
+                    pool.getPage(tid, page(h), Permissions.READ_ONLY);
+                }
+            }
+        }
+        // then a scan
+        for (int i = HOT_PAGES; i < TABLE_PAGES; i++) {
+            pool.getPage(tid, page(i), Permissions.READ_ONLY);
+        }
+        pool.resetStats();
+        for (int h = 0; h < HOT_PAGES; h++) {
+            pool.getPage(tid, page(h), Permissions.READ_ONLY);
+        }
+        assertEquals(HOT_PAGES, pool.getHits() + pool.getMisses());
+        assertTrue(pool.getUsedFrames() <= POOL_PAGES);
+        pool.transactionComplete(tid);
+        return pool.getHits();
+    }
+
+    @Test public void hitRatio() throws Exception {
+        BufferPool pool = Database.resetBufferPool(POOL_PAGES, new ClockEvictionPolicy());
+        TransactionId tid = new TransactionId();
+        for (int round = 0; round < 4; round++) {
+            for (int i = 0; i < POOL_PAGES; i++) {
+                pool.getPage(tid, page(i), Permissions.READ_ONLY);
+            }
+        }
+        assertEquals(POOL_PAGES, pool.getMisses());
+        assertEquals(0.75, pool.getHitRatio(), 1e-9);
+        assertEquals(0, pool.getEvictions());
+        pool.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
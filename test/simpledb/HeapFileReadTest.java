@@ -121,6 +121,25 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * Unit test for reading pages of a HeapFile in HeapFile.IoMode.MAPPED
+     */
+    @Test
+    public void testMappedScan() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile channelFile = SystemTestUtil.createRandomHeapFile(2, 1200, null, tuples);
+        HeapFile mappedFile = new HeapFile(channelFile.getFile(), td, HeapFile.IoMode.MAPPED);
+        Database.getCatalog().addTable(mappedFile, SystemTestUtil.getUUID());
+        assertEquals(HeapFile.IoMode.MAPPED, mappedFile.getIoMode());
+        assertEquals(channelFile.numPages(), mappedFile.numPages());
+
+        HeapPage page = (HeapPage) mappedFile.readPage(new HeapPageId(mappedFile.getId(), 2));
+        assertEquals(3 * 504 - 1200, page.getNumEmptySlots());
+
+        SystemTestUtil.matchTuples(mappedFile, tuples);
+        mappedFile.close();
+    }
+
     /**
      * JUnit suite target
      */
@@ -43,6 +43,354 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * New pages are preallocated in chunks, and the unused tail is trimmed
+     * when the file is closed.
+     */
+    @Test public void preallocate() throws Exception {
+        int pageSize = BufferPool.getPageSize();
+        for (int i = 0; i < 505; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(2, empty.numPages());
+        assertEquals(64L * pageSize, empty.getFile().length());
+        Database.getBufferPool().transactionComplete(tid);
+
+        empty.close();
+        assertEquals(2L * pageSize, empty.getFile().length());
+        assertEquals(2, empty.syncNumPages());
+    }
+
+    /**
+     * A scan of a file without a header doesn't count the preallocated pages,
+     * nor does the file keep them after close().
+     */
+    @Test public void scanAfterPreallocate() throws Exception {
+        int pageSize = BufferPool.getPageSize();
+        for (int i = 0; i < 505; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(2, empty.numPages());
+        assertEquals(64L * pageSize, empty.getFile().length());
+
+        tid = new TransactionId();
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            ++count;
+        }
+        it.close();
+        assertEquals(505, count);
+        assertEquals(2, empty.numPages());
+        Database.getBufferPool().transactionComplete(tid);
+
+        empty.close();
+        assertEquals(2L * pageSize, empty.getFile().length());
+        HeapFile reopened = new HeapFile(empty.getFile(), Utility.getTupleDesc(2));
+        assertEquals(2, reopened.numPages());
+        assertEquals(2, reopened.syncNumPages());
+        reopened.close();
+    }
+
+    /**
+     * Commit writes the transaction's adjacent dirty pages in one write.
+     */
+    @Test public void flushCoalesces() throws Exception {
+        for (int i = 0; i < 504 * 4; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(4, empty.numPages());
+        BufferPool pool = Database.getBufferPool();
+        pool.resetStats();
+        pool.transactionComplete(tid);
+        assertEquals(4, pool.getPagesWritten());
+        assertEquals(1, pool.getWriteBatches());
+
+        tid = new TransactionId();
+        HeapPage last = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), 3));
+        assertEquals(0, last.getNumEmptySlots());
+    }
+
+    /**
+     * A table of short strings in the COMPACT format takes a fraction of
+     * the pages of a FIXED one.
+     */
+    @Test public void compactFormat() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[]{Type.INT_TYPE, Type.STRING_TYPE});
+        java.io.File f = java.io.File.createTempFile("compact", ".dat");
+        f.deleteOnExit();
+        HeapFile compact = new HeapFile(f, td, HeapFile.PageFormat.COMPACT);
+        Database.getCatalog().addTable(compact, "compact");
+
+        java.util.ArrayList<Tuple> tuples = new java.util.ArrayList<Tuple>();
+        for (int i = 0; i < 3000; ++i) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(i));
+            t.setField(1, new StringField("name" + i, Type.STRING_LEN));
+            tuples.add(t);
+        }
+        compact.bulkAppend(tid, tuples.subList(0, 2900).iterator());
+        for (Tuple t : tuples.subList(2900, 3000)) {
+            compact.insertTuple(tid, t);
+        }
+        // 30 tuples per page in the FIXED format
+        assertTrue(compact.numPages() <= 3000 / 30 / 4);
+
+        Database.getBufferPool().transactionComplete(tid);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        DbFileIterator it = compact.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int i = ((IntField) t.getField(0)).getValue();
+            assertEquals(new StringField("name" + i, Type.STRING_LEN), t.getField(1));
+            count++;
+        }
+        it.close();
+        assertEquals(3000, count);
+    }
+
+    /**
+     * A file created with a header keeps its page size when it is reopened
+     * with the plain constructor, and its pages take several frames each.
+     */
+    @Test public void largePages() throws Exception {
+        TupleDesc td = Utility.getTupleDesc(2);
+        java.io.File f = java.io.File.createTempFile("large", ".dat");
+        f.deleteOnExit();
+        new java.io.File(f.getPath() + ".fsm").deleteOnExit();
+        HeapFile large = HeapFile.create(f, td, 16384, HeapFile.PageFormat.FIXED);
+        Database.getCatalog().addTable(large, "large");
+        assertEquals(16384, large.getPageSize());
+
+        // 16384 * 8 / (8 * 8 + 1) = 2016 tuples per page
+        for (int i = 0; i < 2500; ++i) {
+            large.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(2, large.numPages());
+        assertEquals(8, Database.getBufferPool().getUsedFrames());
+        Database.getBufferPool().transactionComplete(tid);
+        large.close();
+        assertEquals(HeapFile.FILE_HEADER_SIZE + 2 * 16384, f.length());
+
+        HeapFile reopened = new HeapFile(f, td);
+        Database.getCatalog().addTable(reopened, "large");
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        assertEquals(16384, reopened.getPageSize());
+        assertEquals(2, reopened.numPages());
+        tid = new TransactionId();
+        DbFileIterator it = reopened.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            assertEquals(new IntField(count), it.next().getField(0));
+            count++;
+        }
+        it.close();
+        assertEquals(2500, count);
+    }
+
+    /** The space an aborted insert took on a page is found again. */
+    @Test public void abortedInsertFreesSpace() throws Exception {
+        for (int i = 0; i < 504; ++i) {
+            Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid, false);
+
+        tid = new TransactionId();
+        Tuple t = Utility.getHeapTuple(1, 2);
+        Database.getBufferPool().insertTuple(tid, empty.getId(), t);
+        assertEquals(0, t.getRecordId().getPageId().getPageNumber());
+        assertEquals(1, empty.numPages());
+    }
+
+    /** A side file covering more pages than the table is someone else's. */
+    @Test public void staleFreeSpaceMap() throws Exception {
+        java.io.File f = java.io.File.createTempFile("stale", ".fsm");
+        f.deleteOnExit();
+        FreeSpaceMap map = new FreeSpaceMap(f, 0);
+        for (int i = 0; i < 10; i++) {
+            map.setRoom(i, 0);
+        }
+        map.persist(0, 10);
+        map.close();
+
+        assertEquals(-1, new FreeSpaceMap(f, 10).nextPageWithRoom(0, 10, 1));
+        assertEquals(0, new FreeSpaceMap(f, 1).nextPageWithRoom(0, 1, 1));
+    }
+
+    /** Pages with some room, but too little for the tuple, are skipped. */
+    @Test public void freeSpaceBySize() throws Exception {
+        java.io.File f = java.io.File.createTempFile("sized", ".fsm");
+        f.deleteOnExit();
+        FreeSpaceMap map = new FreeSpaceMap(f, 0);
+        map.setRoom(0, 0);
+        map.setRoom(1, 10);
+        map.setRoom(2, 100);
+        map.persist(0, 3);
+        map.close();
+
+        map = new FreeSpaceMap(f, 4);
+        assertEquals(1, map.nextPageWithRoom(0, 4, 5));
+        assertEquals(2, map.nextPageWithRoom(0, 4, 50));
+        // never written, so it may have any room
+        assertEquals(3, map.nextPageWithRoom(0, 4, 1000));
+        assertEquals(-1, map.nextPageWithRoom(0, 3, 1000));
+    }
+
+    /**
+     * Lookups find the first page with enough room among many nearly full
+     * ones, from any starting page, and as the map grows.
+     */
+    @Test public void freeSpaceAmongFullPages() throws Exception {
+        java.io.File f = java.io.File.createTempFile("full", ".fsm");
+        f.deleteOnExit();
+        FreeSpaceMap map = new FreeSpaceMap(f, 0);
+        for (int i = 0; i < 1000; i++) {
+            map.setRoom(i, 3);
+        }
+        map.setRoom(517, 40);
+        map.setRoom(900, 80);
+        assertEquals(0, map.nextPageWithRoom(0, 1000, 3));
+        assertEquals(517, map.nextPageWithRoom(0, 1000, 20));
+        assertEquals(900, map.nextPageWithRoom(518, 1000, 20));
+        assertEquals(900, map.nextPageWithRoom(0, 1000, 50));
+        assertEquals(-1, map.nextPageWithRoom(901, 1000, 20));
+        // past the last page the map has heard of
+        assertEquals(1000, map.nextPageWithRoom(0, 1001, 100));
+
+        map.setRoom(517, 3);
+        assertEquals(900, map.nextPageWithRoom(0, 1000, 20));
+        map.setRoom(5000, 3);
+        assertEquals(900, map.nextPageWithRoom(0, 5001, 20));
+        assertEquals(1000, map.nextPageWithRoom(901, 5001, 20));
+        map.close();
+    }
+
+    /**
+     * Opening a file again before close() trimmed it doesn't count the
+     * preallocated pages.
+     */
+    @Test public void reopenWithoutTrim() throws Exception {
+        java.io.File f = java.io.File.createTempFile("untrimmed", ".dat");
+        f.deleteOnExit();
+        new java.io.File(f.getPath() + ".fsm").deleteOnExit();
+        HeapFile file = HeapFile.create(f, Utility.getTupleDesc(2), BufferPool.getPageSize(), HeapFile.PageFormat.FIXED);
+        Database.getCatalog().addTable(file, "untrimmed");
+        for (int i = 0; i < 505; ++i) {
+            file.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(HeapFile.FILE_HEADER_SIZE + 64L * BufferPool.getPageSize(), f.length());
+
+        HeapFile reopened = new HeapFile(f, Utility.getTupleDesc(2));
+        assertEquals(2, reopened.numPages());
+        assertEquals(2, reopened.syncNumPages());
+        reopened.close();
+        file.close();
+    }
+
+    /** COMPACT pages can't outgrow their 16-bit slot offsets. */
+    @Test public void compactPageSizeLimit() throws Exception {
+        java.io.File f = java.io.File.createTempFile("compact", ".dat");
+        f.deleteOnExit();
+        new java.io.File(f.getPath() + ".fsm").deleteOnExit();
+        try {
+            HeapFile.create(f, Utility.getTupleDesc(2), 2 * HeapFile.MAX_COMPACT_PAGE_SIZE, HeapFile.PageFormat.COMPACT);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        HeapFile.create(f, Utility.getTupleDesc(2), HeapFile.MAX_COMPACT_PAGE_SIZE, HeapFile.PageFormat.COMPACT).close();
+    }
+
+    /**
+     * Unit test for HeapFile.bulkAppend()
+     */
+    @Test public void bulkAppend() throws Exception {
+        java.util.ArrayList<Tuple> tuples = new java.util.ArrayList<Tuple>();
+        for (int i = 0; i < 1100; ++i) {
+            tuples.add(Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(1100, empty.bulkAppend(tid, tuples.iterator()));
+        // appended after the existing empty page, 504 tuples per page
+        assertEquals(4, empty.numPages());
+        assertEquals(new HeapPageId(empty.getId(), 3), tuples.get(1099).getRecordId().getPageId());
+
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            assertEquals(count, ((IntField) it.next().getField(0)).getValue());
+            count++;
+        }
+        it.close();
+        assertEquals(1100, count);
+    }
+
+    /**
+     * Pages appended by an aborted transaction are emptied again.
+     */
+    @Test public void bulkAppendAbort() throws Exception {
+        TransactionId aborted = new TransactionId();
+        java.util.ArrayList<Tuple> tuples = new java.util.ArrayList<Tuple>();
+        for (int i = 0; i < 600; ++i) {
+            tuples.add(Utility.getHeapTuple(i, 2));
+        }
+        empty.bulkAppend(aborted, tuples.iterator());
+        Database.getBufferPool().transactionComplete(aborted, false);
+
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        assertFalse(it.hasNext());
+        it.close();
+    }
+
+    /**
+     * Concurrent appenders must each get their own new pages.
+     */
+    @Test public void concurrentBulkAppend() throws Exception {
+        Thread[] threads = new Thread[4];
+        final Exception[] failure = new Exception[1];
+        for (int t = 0; t < threads.length; ++t) {
+            threads[t] = new Thread(() -> {
+                try {
+                    TransactionId appender = new TransactionId();
+                    java.util.ArrayList<Tuple> tuples = new java.util.ArrayList<Tuple>();
+                    for (int i = 0; i < 1008; ++i) {
+                        tuples.add(Utility.getHeapTuple(i, 2));
+                    }
+                    empty.bulkAppend(appender, tuples.iterator());
+                    Database.getBufferPool().transactionComplete(appender);
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure[0]);
+        // one existing page plus two full pages per appender
+        assertEquals(9, empty.numPages());
+        assertEquals(9, empty.syncNumPages());
+
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(4 * 1008, count);
+    }
+
     /**
      * JUnit suite target
      */
@@ -120,6 +120,36 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * Unit test for HeapPage.iterator(List) with predicates evaluated on the page bytes
+     */
+    @Test public void testPredicateIterator() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Predicate p = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(30000));
+        Iterator<Tuple> it = page.iterator(Collections.singletonList(p));
+
+        int expected = 0;
+        for (int[] tuple : EXAMPLE_VALUES) {
+            if (tuple[0] > 30000)
+                expected++;
+        }
+
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple tup = it.next();
+            assertTrue(((IntField) tup.getField(0)).getValue() > 30000);
+            count++;
+        }
+        assertEquals(expected, count);
+
+        // same answer whether or not the row has been decoded already
+        page.iterator().next();
+        assertTrue(page.matches(0, Collections.singletonList(p)));
+        assertFalse(page.matches(2, Collections.singletonList(p)));
+        assertTrue(page.matches(1, Collections.singletonList(
+                new Predicate(1, Predicate.Op.EQUALS, new IntField(56883)))));
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,72 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures read-modify-write contention on a single page in the
+ * LockManager. Each thread runs transactions that read-lock the page,
+ * upgrade to a write lock and release it. Two readers upgrading at once
+ * deadlock, so one of them is aborted; the rest of the upgrades wait for
+ * the other readers to leave. This is not a unit test; run it by hand after
+ * "ant testcompile":
+ * <pre>
+ *   java -cp bin/src:bin/test simpledb.HotPageBenchmark [threads] [seconds]
+ * </pre>
+ */
+public class HotPageBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        System.out.printf("%7s  %9s  %9s  %14s  %14s%n",
+                "threads", "commits/s", "aborts/s", "upgrade us", "max upgrade us");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            run(threads, seconds);
+        }
+    }
+
+    private static void run(int threads, int seconds) throws InterruptedException {
+        final LockManager lm = new LockManager();
+        final PageId hot = new HeapPageId(1, 0);
+        final AtomicLong commits = new AtomicLong();
+        final AtomicLong aborts = new AtomicLong();
+        final AtomicLong upgradeNanos = new AtomicLong();
+        final AtomicLong maxUpgradeNanos = new AtomicLong();
+        final long end = System.nanoTime() + seconds * 1000000000L;
+
+        ArrayList<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            workers.add(new Thread(() -> {
+                while (System.nanoTime() < end) {
+                    TransactionId tid = new TransactionId();
+                    try {
+                        lm.acquire(tid, hot, Permissions.READ_ONLY);
+                        long start = System.nanoTime();
+                        lm.acquire(tid, hot, Permissions.READ_WRITE);
+                        long waited = System.nanoTime() - start;
+                        upgradeNanos.addAndGet(waited);
+                        maxUpgradeNanos.accumulateAndGet(waited, Math::max);
+                        commits.incrementAndGet();
+                    } catch (TransactionAbortedException e) {
+                        aborts.incrementAndGet();
+                    } finally {
+                        lm.releaseAll(tid);
+                    }
+                }
+            }));
+        }
+        for (Thread t : workers) {
+            t.start();
+        }
+        for (Thread t : workers) {
+            t.join();
+        }
+
+        System.out.printf("%7d  %9.0f  %9.0f  %14.1f  %14.1f%n", threads,
+                commits.get() / (double) seconds, aborts.get() / (double) seconds,
+                commits.get() == 0 ? 0 : upgradeNanos.get() / 1e3 / commits.get(),
+                maxUpgradeNanos.get() / 1e3);
+    }
+}
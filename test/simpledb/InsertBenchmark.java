@@ -0,0 +1,46 @@
+package simpledb;
+
+import java.io.File;
+
+/**
+ * Measures insert throughput into a single heap file through
+ * BufferPool.insertTuple. This is not a unit test; run it by hand after
+ * "ant testcompile":
+ * <pre>
+ *   java -cp bin/src:bin/test simpledb.InsertBenchmark [rows] [rowsPerTransaction]
+ * </pre>
+ * Rows are committed in batches because the buffer pool cannot hold more
+ * dirty pages than it has frames.
+ */
+public class InsertBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int batch = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+        File f = File.createTempFile("insertbench", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + ".fsm").deleteOnExit();
+        HeapFile hf = Utility.openHeapFile(2, f);
+
+        long start = System.nanoTime();
+        int inserted = 0;
+        int reportEvery = Math.max(batch, rows / 10);
+        while (inserted < rows) {
+            TransactionId tid = new TransactionId();
+            int n = Math.min(batch, rows - inserted);
+            for (int i = 0; i < n; i++) {
+                Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(inserted + i, 2));
+            }
+            Database.getBufferPool().transactionComplete(tid);
+            inserted += n;
+            if (inserted % reportEvery == 0) {
+                double secs = (System.nanoTime() - start) / 1e9;
+                System.out.printf("%10d rows  %8.2f s  %10.0f inserts/sec%n", inserted, secs, inserted / secs);
+            }
+        }
+        double secs = (System.nanoTime() - start) / 1e9;
+        System.out.printf("inserted %d rows into %d pages in %.2f s: %.0f inserts/sec%n",
+                rows, hf.numPages(), secs, rows / secs);
+    }
+}
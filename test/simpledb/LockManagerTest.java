@@ -0,0 +1,181 @@
+package simpledb;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Deadlock detection in the LockManager. Each transaction takes and
+ * releases its locks on a thread of its own.
+ */
+public class LockManagerTest {
+    private LockManager lm;
+    private PageId p0, p1, p2, p3;
+    private TransactionId tid1, tid2, tid3;
+    private ExecutorService t1, t2, t3;
+
+    @Before public void setUp() {
+        lm = new LockManager();
+        p0 = new HeapPageId(1, 0);
+        p1 = new HeapPageId(1, 1);
+        p2 = new HeapPageId(1, 2);
+        p3 = new HeapPageId(1, 3);
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+        tid3 = new TransactionId();
+        t1 = Executors.newSingleThreadExecutor();
+        t2 = Executors.newSingleThreadExecutor();
+        t3 = Executors.newSingleThreadExecutor();
+    }
+
+    @After public void tearDown() {
+        t1.shutdownNow();
+        t2.shutdownNow();
+        t3.shutdownNow();
+    }
+
+    private Future<Void> acquire(ExecutorService t, TransactionId tid, PageId pid, Permissions perm) {
+        return t.submit(() -> {
+            lm.acquire(tid, pid, perm);
+            return null;
+        });
+    }
+
+    private void releaseAll(ExecutorService t, TransactionId tid) throws Exception {
+        t.submit(() -> lm.releaseAll(tid)).get();
+    }
+
+    /** Waits until n transactions are blocked on pid. */
+    private void awaitWaiting(PageId pid, int n) throws InterruptedException {
+        while (lm.pageLockMap.get(pid).waiting != n) {
+            Thread.sleep(1);
+        }
+    }
+
+    private void assertAborted(Future<Void> f) throws Exception {
+        try {
+            f.get(5, TimeUnit.SECONDS);
+            fail("expected the transaction to be aborted");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TransactionAbortedException);
+        }
+    }
+
+    /**
+     * The older transaction closes the cycle; the younger one, already
+     * blocked, is woken up and aborted.
+     */
+    @Test public void youngestVictim() throws Exception {
+        acquire(t1, tid1, p0, Permissions.READ_WRITE).get();
+        acquire(t2, tid2, p1, Permissions.READ_WRITE).get();
+        Future<Void> f2 = acquire(t2, tid2, p0, Permissions.READ_WRITE);
+        awaitWaiting(p0, 1);
+        Future<Void> f1 = acquire(t1, tid1, p1, Permissions.READ_WRITE);
+
+        assertAborted(f2);
+        releaseAll(t2, tid2);
+        f1.get(5, TimeUnit.SECONDS);
+        assertEquals(1, lm.getVictims());
+        assertTrue(lm.getDetectionNanos() > 0);
+    }
+
+    /** Two readers of a page that both want to write it deadlock. */
+    @Test public void upgradeDeadlock() throws Exception {
+        acquire(t1, tid1, p0, Permissions.READ_ONLY).get();
+        acquire(t2, tid2, p0, Permissions.READ_ONLY).get();
+        Future<Void> f2 = acquire(t2, tid2, p0, Permissions.READ_WRITE);
+        awaitWaiting(p0, 1);
+        Future<Void> f1 = acquire(t1, tid1, p0, Permissions.READ_WRITE);
+
+        assertAborted(f2);
+        releaseAll(t2, tid2);
+        f1.get(5, TimeUnit.SECONDS);
+        assertEquals(LockManager.PageLockType.WRITE, lm.pageLockMap.get(p0).txLockMap.get(tid1));
+    }
+
+    /**
+     * With FEWEST_LOCKS, the older transaction goes if it holds less,
+     * even when it is the one that closes the cycle.
+     */
+    @Test public void fewestLocksVictim() throws Exception {
+        lm.setVictimPolicy(LockManager.VictimPolicy.FEWEST_LOCKS);
+        acquire(t1, tid1, p0, Permissions.READ_WRITE).get();
+        acquire(t2, tid2, p1, Permissions.READ_WRITE).get();
+        acquire(t2, tid2, p2, Permissions.READ_WRITE).get();
+        acquire(t2, tid2, p3, Permissions.READ_WRITE).get();
+        Future<Void> f2 = acquire(t2, tid2, p0, Permissions.READ_WRITE);
+        awaitWaiting(p0, 1);
+        Future<Void> f1 = acquire(t1, tid1, p1, Permissions.READ_WRITE);
+
+        assertAborted(f1);
+        releaseAll(t1, tid1);
+        f2.get(5, TimeUnit.SECONDS);
+        assertEquals(1, lm.getVictims());
+    }
+
+    /** Transactions queued behind one another on a page are not a deadlock. */
+    @Test public void queueIsNotDeadlock() throws Exception {
+        acquire(t1, tid1, p0, Permissions.READ_WRITE).get();
+        Future<Void> f2 = acquire(t2, tid2, p0, Permissions.READ_WRITE);
+        awaitWaiting(p0, 1);
+        Future<Void> f3 = acquire(t3, tid3, p0, Permissions.READ_ONLY);
+        awaitWaiting(p0, 2);
+
+        releaseAll(t1, tid1);
+        f2.get(5, TimeUnit.SECONDS);
+        releaseAll(t2, tid2);
+        f3.get(5, TimeUnit.SECONDS);
+        assertEquals(0, lm.getVictims());
+        assertTrue(lm.getSearches() >= 2);
+    }
+
+    /** A reader doesn't pass a writer queued ahead of it. */
+    @Test public void fifoGrants() throws Exception {
+        acquire(t1, tid1, p0, Permissions.READ_ONLY).get();
+        Future<Void> f2 = acquire(t2, tid2, p0, Permissions.READ_WRITE);
+        awaitWaiting(p0, 1);
+        Future<Void> f3 = acquire(t3, tid3, p0, Permissions.READ_ONLY);
+        awaitWaiting(p0, 2);
+
+        releaseAll(t1, tid1);
+        f2.get(5, TimeUnit.SECONDS);
+        assertFalse(f3.isDone());
+        releaseAll(t2, tid2);
+        f3.get(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * An upgrade goes ahead of queued requests for new locks, and is
+     * granted as soon as the other reader lets go, even from another thread.
+     */
+    @Test public void upgradeAheadOfQueue() throws Exception {
+        acquire(t1, tid1, p0, Permissions.READ_ONLY).get();
+        acquire(t2, tid2, p0, Permissions.READ_ONLY).get();
+        Future<Void> f3 = acquire(t3, tid3, p0, Permissions.READ_WRITE);
+        awaitWaiting(p0, 1);
+        Future<Void> f1 = acquire(t1, tid1, p0, Permissions.READ_WRITE);
+        awaitWaiting(p0, 2);
+        assertTrue(lm.pageLockMap.get(p0).queue.get(0).upgrade);
+
+        lm.releaseAll(tid2);
+        f1.get(5, TimeUnit.SECONDS);
+        assertFalse(f3.isDone());
+        lm.releaseAll(tid1);
+        f3.get(5, TimeUnit.SECONDS);
+        assertEquals(0, lm.getVictims());
+    }
+
+    /** JUnit suite target */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
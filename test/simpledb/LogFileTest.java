@@ -0,0 +1,297 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogFileTest {
+    private LogFile log;
+
+    @Before public void setUp() {
+        Database.reset();
+        log = Database.getLogFile();
+    }
+
+    /**
+     * Concurrent committers share forces of the log.
+     */
+    @Test public void groupCommit() throws Exception {
+        final int THREADS = 8;
+        log.setGroupCommitWaitMicros(20000);
+        CountDownLatch go = new CountDownLatch(1);
+        Thread[] committers = new Thread[THREADS];
+        Exception[] failure = new Exception[1];
+        for (int t = 0; t < THREADS; t++) {
+            committers[t] = new Thread(() -> {
+                try {
+                    Transaction tx = new Transaction();
+                    tx.start();
+                    go.await();
+                    tx.commit();
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            });
+            committers[t].start();
+        }
+        long forces = log.getForces();
+        go.countDown();
+        for (Thread c : committers) {
+            c.join();
+        }
+        assertNull(failure[0]);
+        assertEquals(THREADS, log.getCommits());
+        assertTrue(log.getForces() - forces < THREADS);
+    }
+
+    /**
+     * Without group commit, every commit forces the log.
+     */
+    @Test public void soloCommit() throws Exception {
+        log.setGroupCommit(false);
+        for (int i = 0; i < 3; i++) {
+            Transaction tx = new Transaction();
+            tx.start();
+            tx.commit();
+        }
+        assertEquals(3, log.getCommits());
+        assertEquals(3, log.getForces());
+    }
+
+    /**
+     * Records sit in the log buffer until the log is forced up to their
+     * LSN, and LSNs keep growing when a checkpoint truncates the log.
+     */
+    @Test public void bufferedLsns() throws Exception {
+        Transaction tx = new Transaction();
+        tx.start();
+        long lsn = log.getEndLsn();
+        assertEquals(0, log.segmentFile(0).length());
+        log.force(lsn);
+        assertEquals(lsn, log.segmentFile(0).length());
+
+        tx.commit();
+        long committed = log.getEndLsn();
+        log.logCheckpoint();
+        assertTrue(log.getEndLsn() > committed);
+    }
+
+    /**
+     * An interrupt during a force closes the log's channel; the force fails,
+     * but the log carries on in the same segment.
+     */
+    @Test public void interruptedForce() throws Exception {
+        Transaction tx = new Transaction();
+        tx.start();
+        Thread.currentThread().interrupt();
+        try {
+            log.force();
+            fail("expected ClosedByInterruptException");
+        } catch (java.nio.channels.ClosedByInterruptException e) {
+            // expected
+        } finally {
+            Thread.interrupted();
+        }
+
+        tx.commit();
+        assertEquals(log.getEndLsn(), log.segmentFile(0).length());
+    }
+
+    /**
+     * Records run on from one segment into the next. A checkpoint drops
+     * the segments before it, keeping some to write the log into again,
+     * and what they held before doesn't read back after a crash.
+     */
+    @Test public void segmentRecycling() throws Exception {
+        log.setSegmentSize(1000);
+        // BEGIN and COMMIT records take 20 bytes each
+        for (int i = 0; i < 200; i++) {
+            Transaction tx = new Transaction();
+            tx.start();
+            tx.commit();
+        }
+        assertEquals(1000, log.getSegmentSize());
+        assertEquals(8000, log.getEndLsn());
+        log.logCheckpoint();
+        long end = log.getEndLsn();
+        assertFalse(log.segmentFile(0).exists());
+        assertFalse(log.segmentFile(7).exists());
+        // the spares come right after the last segment, at full size
+        assertEquals(1000, log.segmentFile(9).length());
+        assertEquals(1000, log.segmentFile(12).length());
+        assertFalse(log.segmentFile(13).exists());
+
+        // into the spares, but not to their end
+        for (int i = 0; i < 80; i++) {
+            Transaction tx = new Transaction();
+            tx.start();
+            tx.commit();
+        }
+        long committed = log.getEndLsn();
+        assertEquals(end + 3200, committed);
+        assertEquals(1000, log.segmentFile(9).length());
+        Transaction loser = new Transaction();
+        loser.start();
+        log.force();
+
+        Database.reset();
+        log = Database.getLogFile();
+        log.recover();
+        // the loser's BEGIN and the ABORT recovery wrote for it
+        assertEquals(committed + 40, log.getEndLsn());
+        assertEquals(1000, log.getSegmentSize());
+        assertFalse(log.segmentFile(12).exists());
+    }
+
+    /**
+     * Stale bytes after the end of the log that claim a huge page image
+     * end the log instead of sizing an array.
+     */
+    @Test public void staleLength() throws Exception {
+        Transaction tx = new Transaction();
+        tx.start();
+        tx.commit();
+        long committed = log.getEndLsn();
+
+        java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+        java.io.DataOutputStream garbage = new java.io.DataOutputStream(bytes);
+        garbage.writeInt(LogFile.UPDATE_RECORD);
+        garbage.writeLong(tx.getId().getId());
+        garbage.writeUTF(HeapPage.class.getName());
+        garbage.writeUTF(HeapPageId.class.getName());
+        garbage.writeInt(2);
+        garbage.writeInt(1);
+        garbage.writeInt(0);
+        garbage.writeInt(Integer.MAX_VALUE - 16);
+        try (java.io.RandomAccessFile seg = new java.io.RandomAccessFile(log.segmentFile(0), "rw")) {
+            seg.seek(committed);
+            seg.write(bytes.toByteArray());
+        }
+
+        Database.reset();
+        log = Database.getLogFile();
+        log.recover();
+        assertEquals(committed, log.getEndLsn());
+    }
+
+    /** A log from before segments is left alone, and the log won't start. */
+    @Test public void oldLogFile() throws Exception {
+        File f = File.createTempFile("oldlog", "");
+        f.deleteOnExit();
+        try {
+            new LogFile(f);
+            fail("expected IOException");
+        } catch (java.io.IOException e) {
+            // expected
+        }
+        assertTrue(f.isFile());
+    }
+
+    private HeapFile createTable(int pages) throws Exception {
+        File f = File.createTempFile("logtest", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + ".fsm").deleteOnExit();
+        HeapFile hf = Utility.openHeapFile(2, f);
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < pages * HeapPage.getNumTuples(hf.getTupleDesc()); i++) {
+            tuples.add(Utility.getHeapTuple(i, 2));
+        }
+        TransactionId loader = new TransactionId();
+        hf.bulkAppend(loader, tuples.iterator());
+        Database.getBufferPool().transactionComplete(loader);
+        return hf;
+    }
+
+    /**
+     * A one-tuple change is logged as a DELTA record of a few dozen bytes,
+     * and rollback undoes it from the log.
+     */
+    @Test public void deltaRecord() throws Exception {
+        HeapFile hf = createTable(2);
+        BufferPool pool = Database.getBufferPool();
+        HeapPageId pid = new HeapPageId(hf.getId(), 1);
+        byte[] original = hf.readPage(pid).getPageData();
+
+        TransactionId tid = new TransactionId();
+        HeapPage page = (HeapPage) pool.getPage(tid, pid, Permissions.READ_WRITE);
+        pool.deleteTuple(tid, page.iterator().next());
+        long before = log.getEndLsn();
+        long size = log.logWrite(tid, page.getBeforeImage(), page) - before;
+        assertTrue(size < 100);
+
+        // as if the page had been stolen
+        hf.writePage(page);
+        log.rollback(tid);
+        assertArrayEquals(original, hf.readPage(pid).getPageData());
+        pool.transactionComplete(tid, false);
+    }
+
+    /**
+     * Rollback undoes a transaction's DELTA and UPDATE records of one page
+     * newest first.
+     */
+    @Test public void rollbackInOrder() throws Exception {
+        HeapFile hf = createTable(1);
+        BufferPool pool = Database.getBufferPool();
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        byte[] original = hf.readPage(pid).getPageData();
+
+        TransactionId tid = new TransactionId();
+        HeapPage page = (HeapPage) pool.getPage(tid, pid, Permissions.READ_WRITE);
+        // every tuple changes: too much for a delta
+        HeapPage empty = hf.createEmptyPage(0);
+        log.logWrite(tid, page, empty);
+        // then one tuple comes back
+        HeapPage one = hf.createEmptyPage(0);
+        one.insertTuple(Utility.getHeapTuple(7, 2));
+        log.logWrite(tid, empty, one);
+        hf.writePage(one);
+
+        log.rollback(tid);
+        assertArrayEquals(original, hf.readPage(pid).getPageData());
+        pool.transactionComplete(tid, false);
+    }
+
+    /**
+     * A checkpoint forces the files written since the last one, whose pages
+     * its dirty page table leaves out, before the log before it can go.
+     */
+    @Test public void checkpointForcesWrittenFiles() throws Exception {
+        File f = File.createTempFile("forced", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + ".fsm").deleteOnExit();
+        int[] forces = new int[1];
+        HeapFile hf = new HeapFile(f, Utility.getTupleDesc(2)) {
+            @Override public void force() throws java.io.IOException {
+                forces[0]++;
+                super.force();
+            }
+        };
+        Database.getCatalog().addTable(hf, "forced");
+
+        Transaction tx = new Transaction();
+        tx.start();
+        Database.getBufferPool().insertTuple(tx.getId(), hf.getId(), Utility.getHeapTuple(1, 2));
+        tx.commit();
+        assertEquals(0, forces[0]);
+        log.logCheckpoint();
+        assertEquals(1, forces[0]);
+        // nothing written since
+        log.logCheckpoint();
+        assertEquals(1, forces[0]);
+        hf.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileTest.class);
+    }
+}
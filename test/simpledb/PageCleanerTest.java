@@ -0,0 +1,97 @@
+package simpledb;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class PageCleanerTest {
+    private static final int POOL_PAGES = 4;
+
+    private HeapFile hf;
+    private BufferPool pool;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        File f = File.createTempFile("cleaner", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + ".fsm").deleteOnExit();
+        hf = Utility.openHeapFile(2, f);
+        java.util.ArrayList<Tuple> tuples = new java.util.ArrayList<Tuple>();
+        for (int i = 0; i < 2 * POOL_PAGES * HeapPage.getNumTuples(hf.getTupleDesc()); i++) {
+            tuples.add(Utility.getHeapTuple(i, 2));
+        }
+        TransactionId loader = new TransactionId();
+        hf.bulkAppend(loader, tuples.iterator());
+        Database.getBufferPool().transactionComplete(loader);
+        pool = Database.resetBufferPool(POOL_PAGES);
+    }
+
+    @After public void tearDown() {
+        pool.stopCleaner();
+    }
+
+    private PageId page(int pgNo) {
+        return new HeapPageId(hf.getId(), pgNo);
+    }
+
+    /**
+     * An eviction that finds only dirty pages fails and is counted.
+     */
+    @Test public void noCleanVictim() throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < POOL_PAGES; i++) {
+            pool.getPage(tid, page(i), Permissions.READ_WRITE).markDirty(true, tid);
+        }
+        try {
+            pool.getPage(tid, page(POOL_PAGES), Permissions.READ_ONLY);
+            fail("expected all dirty");
+        } catch (DbException expected) {
+        }
+        assertEquals(1, pool.getNoCleanVictim());
+        pool.transactionComplete(tid, false);
+    }
+
+    /**
+     * The cleaner writes pages left dirty by a committed transaction, so
+     * they can be evicted again.
+     */
+    @Test public void cleansCommittedPages() throws Exception {
+        pool.setStealNoForce(true);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < POOL_PAGES; i++) {
+            pool.getPage(tid, page(i), Permissions.READ_WRITE).markDirty(true, tid);
+        }
+        pool.resetStats();
+        pool.transactionComplete(tid);
+        assertEquals(0, pool.getPagesWritten());
+        TransactionId reader = new TransactionId();
+        assertNotNull(pool.getPage(reader, page(0), Permissions.READ_ONLY).isDirty());
+
+        PageCleaner cleaner = pool.startCleaner(1000);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cleaner.getPagesCleaned() < POOL_PAGES && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(POOL_PAGES, cleaner.getPagesCleaned());
+        assertEquals(1, cleaner.getWrites());
+        for (int i = 0; i < POOL_PAGES; i++) {
+            assertNull(pool.getPage(reader, page(i), Permissions.READ_ONLY).isDirty());
+        }
+
+        pool.getPage(reader, page(POOL_PAGES), Permissions.READ_ONLY);
+        assertEquals(0, pool.getNoCleanVictim());
+        pool.transactionComplete(reader);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageCleanerTest.class);
+    }
+}
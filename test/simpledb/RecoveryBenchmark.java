@@ -0,0 +1,89 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Random;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Measures LogFile.recover against the number of redo threads. It builds a
+ * log of committed updates to random pages under STEAL/NO FORCE, "crashes"
+ * by copying the table and the log aside, and then recovers the copies
+ * with 1, 2, 4, ... threads. This is not a unit test; run it by hand after
+ * "ant testcompile":
+ * <pre>
+ *   java -cp bin/src:bin/test simpledb.RecoveryBenchmark [pages] [updates] [maxThreads]
+ * </pre>
+ * Redo only speeds up with more threads when there are processors to run
+ * them and pages to read that aren't cached yet.
+ */
+public class RecoveryBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 2048;
+        int updates = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        File logDir = Database.getLogFile().logFile;
+        copyLog(null, logDir);
+        Database.reset();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 504 * pages, 1000, null, new ArrayList<ArrayList<Integer>>());
+        File file = table.getFile();
+        BufferPool pool = Database.resetBufferPool(256);
+        pool.setStealNoForce(true);
+
+        Random rand = new Random(0);
+        long start = System.nanoTime();
+        for (int done = 0; done < updates; ) {
+            Transaction t = new Transaction();
+            t.start();
+            for (int i = 0; i < 100 && done < updates; i++, done++) {
+                HeapPageId pid = new HeapPageId(table.getId(), rand.nextInt(pages));
+                HeapPage page = (HeapPage) pool.getPage(t.getId(), pid, Permissions.READ_WRITE);
+                pool.deleteTuple(t.getId(), page.iterator().next());
+                pool.insertTuple(t.getId(), table.getId(), Utility.getHeapTuple(new int[]{i, done}));
+            }
+            t.commit();
+        }
+        LogFile log = Database.getLogFile();
+        log.drain();
+        System.out.printf("logged %d updates in %.1f s, %.1f MB of log%n", updates,
+                (System.nanoTime() - start) / 1e9, log.getEndLsn() / 1e6);
+
+        File savedTable = File.createTempFile("recoverybench", ".dat");
+        File savedLog = Files.createTempDirectory("recoverybench").toFile();
+        savedTable.deleteOnExit();
+        Files.copy(file.toPath(), savedTable.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        copyLog(logDir, savedLog);
+
+        System.out.printf("%7s  %10s%n", "threads", "recover ms");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            Files.copy(savedTable.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            copyLog(savedLog, logDir);
+            Database.reset();
+            Utility.openHeapFile(2, file);
+            Database.getLogFile().setRecoveryThreads(threads);
+            start = System.nanoTime();
+            Database.getLogFile().recover();
+            System.out.printf("%7d  %10.1f%n", threads, (System.nanoTime() - start) / 1e6);
+        }
+        copyLog(null, savedLog);
+        savedLog.delete();
+    }
+
+    /** Replaces the files in log directory to with those in from, or none if from is null. */
+    private static void copyLog(File from, File to) throws IOException {
+        for (File f : to.listFiles()) {
+            f.delete();
+        }
+        if (from != null) {
+            for (File f : from.listFiles()) {
+                Files.copy(f.toPath(), new File(to, f.getName()).toPath());
+            }
+        }
+    }
+}
@@ -40,6 +40,30 @@ public class EvictionTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * A pinned page stays in the pool while everything else is evicted
+     * around it, and is evictable again once unpinned.
+     */
+    @Test public void testPinnedPageIsNotEvicted() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1024*10, null, null);
+        Database.resetBufferPool(BUFFER_PAGES);
+        TransactionId tid = new TransactionId();
+        PageId first = new HeapPageId(f.getId(), 0);
+        Page pinned = Database.getBufferPool().pinPage(tid, first, Permissions.READ_ONLY);
+        for (int i = 1; i < f.numPages(); i++) {
+            Database.getBufferPool().getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_ONLY);
+        }
+        assertSame(pinned, Database.getBufferPool().getPage(tid, first, Permissions.READ_ONLY));
+
+        Database.getBufferPool().unpinPage(first);
+        for (int i = 1; i < f.numPages(); i++) {
+            Database.getBufferPool().getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_ONLY);
+        }
+        assertNotSame(pinned, Database.getBufferPool().getPage(tid, first, Permissions.READ_ONLY));
+        assertTrue(Database.getBufferPool().getUsedFrames() <= BUFFER_PAGES);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     public static void insertRow(HeapFile f, Transaction t) throws DbException,
             TransactionAbortedException {
         // Create a row to insert
@@ -68,6 +68,12 @@ public class InsertTest extends SimpleDbTestBase {
         validateInsert(1, 1, 1);
     }
 
+    @Test public void testManyToSome()
+            throws IOException, DbException, TransactionAbortedException {
+        // large enough to take the bulk append path, with a partial last batch
+        validateInsert(2, 40000, 100);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(InsertTest.class);
@@ -104,6 +104,71 @@ public class ScanTest extends SimpleDbTestBase {
         assertEquals(0, table.readCount);
     }
 
+    /**
+     * Verifies that sequential scans read ahead and still see every tuple.
+     * How many read-ahead pages arrive in time depends on the background
+     * threads, so only the counters' invariants are checked.
+     */
+    @Test public void testReadAhead() throws IOException, DbException, TransactionAbortedException {
+        final int PAGES = 30;
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(1, 992*PAGES, 1000, null, tuples);
+        BufferPool pool = Database.getBufferPool();
+        pool.setReadAheadPages(4);
+
+        SystemTestUtil.matchTuples(table, tuples);
+        assertTrue(pool.getPrefetchIssued() > 0);
+        assertTrue(pool.getPrefetchHits() + pool.getPrefetchWasted() <= pool.getPrefetchIssued());
+
+        // a second scan, with the table cached, gives the same tuples
+        SystemTestUtil.matchTuples(table, tuples);
+    }
+
+    /** Verifies that a scan of a table larger than the pool leaves the pool's other pages cached. */
+    @Test public void testScanRing() throws IOException, DbException, TransactionAbortedException {
+        final int POOL_PAGES = 20;
+        ArrayList<ArrayList<Integer>> hotTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hot = SystemTestUtil.createRandomHeapFile(1, 992*5, 1000, null, hotTuples);
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile big = SystemTestUtil.createRandomHeapFile(1, 992*60, 1000, null, tuples);
+        BufferPool pool = Database.resetBufferPool(POOL_PAGES);
+
+        SystemTestUtil.matchTuples(hot, hotTuples);
+        SystemTestUtil.matchTuples(big, tuples);
+        assertTrue(pool.getUsedFrames() <= POOL_PAGES);
+
+        pool.resetStats();
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < hot.numPages(); i++) {
+            pool.getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+        }
+        assertEquals(0, pool.getMisses());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Verifies that scans and updates work with an off-heap pool smaller than the table. */
+    @Test public void testOffHeapPool() throws Exception {
+        final int POOL_PAGES = 20;
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504*40, 1000, null, tuples);
+        BufferPool pool = Database.resetBufferPool(BufferPool.offHeap((long) POOL_PAGES * BufferPool.getPageSize()));
+        assertTrue(pool.isOffHeap());
+
+        SystemTestUtil.matchTuples(big, tuples);
+        SystemTestUtil.matchTuples(big, tuples);
+        assertTrue(pool.getEvictions() > 0);
+        assertTrue(pool.getUsedFrames() <= POOL_PAGES);
+
+        // delete the first tuple of a page; the page stays dirty in the arena
+        TransactionId tid = new TransactionId();
+        HeapPage page = (HeapPage) pool.getPage(tid, new HeapPageId(big.getId(), 3), Permissions.READ_WRITE);
+        Tuple victim = page.iterator().next();
+        pool.deleteTuple(tid, victim);
+        pool.transactionComplete(tid);
+        tuples.remove(SystemTestUtil.tupleToList(victim));
+        SystemTestUtil.matchTuples(big, tuples);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(ScanTest.class);
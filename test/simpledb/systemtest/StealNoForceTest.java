@@ -0,0 +1,111 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Transactions on a BufferPool running STEAL/NO FORCE.
+ */
+public class StealNoForceTest extends SimpleDbTestBase {
+    private static final int POOL_PAGES = 5;
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile f;
+    private BufferPool pool;
+
+    @Before public void setUp() throws Exception {
+        tuples = new ArrayList<ArrayList<Integer>>();
+        f = SystemTestUtil.createRandomHeapFile(2, 504 * 4 * POOL_PAGES, 1000, null, tuples);
+        pool = Database.resetBufferPool(POOL_PAGES);
+        pool.setStealNoForce(true);
+    }
+
+    @After public void tearDown() throws Exception {
+        pool.flushAllPages();
+    }
+
+    /** Deletes the first tuple of each of the table's pages, in transaction t. */
+    private void deleteFirstOfEachPage(Transaction t) throws Exception {
+        for (int i = 0; i < f.numPages(); i++) {
+            HeapPage page = (HeapPage) pool.getPage(t.getId(), new HeapPageId(f.getId(), i), Permissions.READ_WRITE);
+            Tuple victim = page.iterator().next();
+            pool.deleteTuple(t.getId(), victim);
+            tuples.remove(SystemTestUtil.tupleToList(victim));
+        }
+    }
+
+    /** Commit forces the log, but writes none of the pages. */
+    @Test public void commitWritesNoPages() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        HeapPage page = (HeapPage) pool.getPage(t.getId(), new HeapPageId(f.getId(), 0), Permissions.READ_WRITE);
+        Tuple victim = page.iterator().next();
+        pool.deleteTuple(t.getId(), victim);
+        tuples.remove(SystemTestUtil.tupleToList(victim));
+        pool.resetStats();
+        t.commit();
+        assertEquals(0, pool.getPagesWritten());
+
+        SystemTestUtil.matchTuples(f, tuples);
+        pool.flushAllPages();
+        Database.resetBufferPool(POOL_PAGES);
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /** A transaction can dirty more pages than the pool holds. */
+    @Test public void updateLargerThanPool() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        deleteFirstOfEachPage(t);
+        assertTrue(pool.getNoCleanVictim() > 0);
+        t.commit();
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /** Aborting a transaction whose pages were stolen puts them back from the log. */
+    @Test public void abortAfterSteal() throws Exception {
+        ArrayList<ArrayList<Integer>> before = new ArrayList<ArrayList<Integer>>(tuples);
+        Transaction t = new Transaction();
+        t.start();
+        deleteFirstOfEachPage(t);
+        t.abort();
+        SystemTestUtil.matchTuples(f, before);
+        Database.resetBufferPool(POOL_PAGES);
+        SystemTestUtil.matchTuples(f, before);
+    }
+
+    /**
+     * An abort keeps the changes of an earlier transaction that committed
+     * but whose pages were not written yet.
+     */
+    @Test public void abortKeepsUnwrittenCommit() throws Exception {
+        HeapPageId pid = new HeapPageId(f.getId(), 0);
+        Transaction t1 = new Transaction();
+        t1.start();
+        Tuple first = ((HeapPage) pool.getPage(t1.getId(), pid, Permissions.READ_WRITE)).iterator().next();
+        pool.deleteTuple(t1.getId(), first);
+        tuples.remove(SystemTestUtil.tupleToList(first));
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        Tuple second = ((HeapPage) pool.getPage(t2.getId(), pid, Permissions.READ_WRITE)).iterator().next();
+        pool.deleteTuple(t2.getId(), second);
+        t2.abort();
+
+        SystemTestUtil.matchTuples(f, tuples);
+        Database.resetBufferPool(POOL_PAGES);
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(StealNoForceTest.class);
+    }
+}